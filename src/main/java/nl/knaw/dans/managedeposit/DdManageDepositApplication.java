@@ -24,26 +24,72 @@ import io.dropwizard.core.setup.Bootstrap;
 import io.dropwizard.core.setup.Environment;
 import nl.knaw.dans.managedeposit.core.CsvMessageBodyWriter;
 import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.core.DepositPropertiesArchive;
+import nl.knaw.dans.managedeposit.core.NdjsonMessageBodyWriter;
+import nl.knaw.dans.managedeposit.core.service.ChunkedSerializer;
+import nl.knaw.dans.managedeposit.core.service.DepositArchiveTask;
+import nl.knaw.dans.managedeposit.core.service.DepositArchiver;
+import nl.knaw.dans.managedeposit.core.service.DepositBoxCoordinator;
+import nl.knaw.dans.managedeposit.core.service.DepositBoxLocks;
+import nl.knaw.dans.managedeposit.core.service.DepositBoxReconciler;
+import nl.knaw.dans.managedeposit.core.service.DepositEventBuffer;
+import nl.knaw.dans.managedeposit.core.service.DepositEventQueue;
+import nl.knaw.dans.managedeposit.core.service.DepositImporter;
+import nl.knaw.dans.managedeposit.core.service.DepositIndex;
+import nl.knaw.dans.managedeposit.core.service.DepositLag;
+import nl.knaw.dans.managedeposit.core.service.DepositStatistics;
+import nl.knaw.dans.managedeposit.core.service.DepositStatisticsRefresher;
+import nl.knaw.dans.managedeposit.core.service.DepositMoveCorrelator;
+import nl.knaw.dans.managedeposit.core.service.FolderSizer;
+import nl.knaw.dans.managedeposit.core.service.StorageSizeWorker;
+import nl.knaw.dans.managedeposit.core.service.StuckDepositDetector;
+import nl.knaw.dans.managedeposit.core.service.StuckDepositFinder;
 import nl.knaw.dans.managedeposit.core.service.DepositStatusUpdater;
+import nl.knaw.dans.managedeposit.core.service.InboxProbe;
+import nl.knaw.dans.managedeposit.core.service.SingleInstanceTasks;
 import nl.knaw.dans.managedeposit.core.service.IngestPathMonitor;
+import nl.knaw.dans.managedeposit.core.service.IoBudget;
+import nl.knaw.dans.managedeposit.db.AdvisoryDepositBoxLocks;
+import nl.knaw.dans.managedeposit.db.CsvCopyExporter;
+import nl.knaw.dans.managedeposit.db.DatabaseDialect;
+import nl.knaw.dans.managedeposit.db.DepositDictionary;
+import nl.knaw.dans.managedeposit.db.DepositDictionaryMigration;
 import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
+import nl.knaw.dans.managedeposit.db.HibernateCacheMetrics;
+import nl.knaw.dans.managedeposit.db.SearchIndexInitializer;
+import nl.knaw.dans.managedeposit.health.DepositEventQueueHealthCheck;
+import nl.knaw.dans.managedeposit.health.DepositLagHealthCheck;
 import nl.knaw.dans.managedeposit.health.InboxHealthCheck;
+import nl.knaw.dans.managedeposit.resources.DepositEventsResource;
+import nl.knaw.dans.managedeposit.resources.DepositImportResource;
+import nl.knaw.dans.managedeposit.resources.DepositLagResource;
 import nl.knaw.dans.managedeposit.resources.DepositPropertiesDeleteResource;
 import nl.knaw.dans.managedeposit.resources.DepositPropertiesReportResource;
 import nl.knaw.dans.managedeposit.resources.DepositPropertiesResource;
+import nl.knaw.dans.managedeposit.resources.StuckDepositsResource;
+import org.glassfish.jersey.media.sse.SseFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DdManageDepositApplication extends Application<DdManageDepositConfiguration> {
+    private static final Logger log = LoggerFactory.getLogger(DdManageDepositApplication.class);
 
     public static void main(final String[] args) throws Exception {
         new DdManageDepositApplication().run(args);
     }
 
     private final HibernateBundle<DdManageDepositConfiguration> depositPropertiesHibernate =
-        new HibernateBundle<>(DepositProperties.class) {
+        new HibernateBundle<>(DepositProperties.class, DepositPropertiesArchive.class) {
 
             @Override
             public DataSourceFactory getDataSourceFactory(DdManageDepositConfiguration configuration) {
-                return configuration.getDepositPropertiesDatabase();
+                DataSourceFactory database = configuration.getDepositPropertiesDatabase();
+                if (isSharedBoxOwnership(configuration)) {
+                    // Other instances write to the same records, and their changes do not evict the entries in this instance's cache
+                    database.getProperties().put("hibernate.cache.use_second_level_cache", "false");
+                    database.getProperties().put("hibernate.cache.use_query_cache", "false");
+                }
+                return database;
             }
         };
 
@@ -59,24 +105,111 @@ public class DdManageDepositApplication extends Application<DdManageDepositConfi
 
     @Override
     public void run(final DdManageDepositConfiguration configuration, final Environment environment) {
-        DepositPropertiesDAO depositPropertiesDAO = new DepositPropertiesDAO(depositPropertiesHibernate.getSessionFactory());
-        environment.jersey().register(new DepositPropertiesResource(depositPropertiesDAO));
-        environment.jersey().register(new DepositPropertiesReportResource(depositPropertiesDAO));
-        environment.jersey().register(new DepositPropertiesDeleteResource(depositPropertiesDAO));
+        // Managed objects are started in order of registration: the records must have been converted before anything reads them
+        DepositDictionary depositDictionary = DepositDictionary.install(new DepositDictionary(depositPropertiesHibernate.getSessionFactory()));
+        environment.lifecycle().manage(new DepositDictionaryMigration(depositPropertiesHibernate.getSessionFactory(), depositDictionary,
+            DatabaseDialect.isPostgreSQL(configuration.getDepositPropertiesDatabase())));
+        DepositPropertiesDAO depositPropertiesDAO = new DepositPropertiesDAO(depositPropertiesHibernate.getSessionFactory(), depositDictionary);
+        // With shared box ownership, other instances write to the same records behind the index's back, so every lookup must go to the database
+        boolean sharedBoxOwnership = isSharedBoxOwnership(configuration);
+        DepositIndex depositIndex = new DepositIndex(sharedBoxOwnership ? 0 : configuration.getDepositIndex().getMaxEntries());
+        DepositStatistics depositStatistics = new DepositStatistics(environment.metrics());
+        environment.jersey().register(new DepositPropertiesResource(depositPropertiesDAO, depositIndex, depositStatistics));
+        CsvCopyExporter csvCopyExporter = DatabaseDialect.isPostgreSQL(configuration.getDepositPropertiesDatabase())
+            ? new CsvCopyExporter(depositPropertiesHibernate.getSessionFactory(), depositDictionary) : null;
+        environment.jersey().register(new DepositPropertiesReportResource(depositPropertiesDAO, csvCopyExporter));
+        environment.jersey().register(new DepositPropertiesDeleteResource(depositPropertiesDAO, depositIndex, depositStatistics));
 
-        environment.healthChecks().register("Inbox", new InboxHealthCheck(configuration));
+        DepositEventBuffer depositEventBuffer = new DepositEventBuffer(configuration.getEvents().getBufferSize());
+        environment.jersey().register(SseFeature.class);
+        environment.jersey().register(new DepositEventsResource(depositEventBuffer, environment.getObjectMapper(),
+            environment.lifecycle().scheduledExecutorService("deposit-events").threads(4).build()));
 
-        environment.jersey().register(new CsvMessageBodyWriter());
+        HibernateCacheMetrics.register(depositPropertiesHibernate.getSessionFactory(), environment.metrics());
+
+        if (DatabaseDialect.isPostgreSQL(configuration.getDepositPropertiesDatabase())) {
+            environment.lifecycle().manage(new SearchIndexInitializer(depositPropertiesHibernate.getSessionFactory()));
+        }
+
+        final InboxProbe inboxProbe = new InboxProbe(configuration.getDepositBoxes(), configuration.getInboxHealth(), environment.metrics());
+        environment.lifecycle().manage(inboxProbe);
+        environment.healthChecks().register("Inbox", new InboxHealthCheck(inboxProbe));
+
+        final ChunkedSerializer chunkedSerializer = new ChunkedSerializer(configuration.getReportSerialization());
+        environment.lifecycle().manage(chunkedSerializer);
+        environment.jersey().register(new CsvMessageBodyWriter(chunkedSerializer));
+        environment.jersey().register(new NdjsonMessageBodyWriter(environment.getObjectMapper(), chunkedSerializer));
+
+        final IoBudget ioBudget = new IoBudget(configuration.getIoBudget(), environment.metrics());
+        final FolderSizer folderSizer = new FolderSizer(configuration.getFolderSize().getParallelism(), configuration.getFolderSize().getSequentialThreshold(), ioBudget);
+        environment.lifecycle().manage(folderSizer);
 
         final UnitOfWorkAwareProxyFactory proxyFactory = new UnitOfWorkAwareProxyFactory(depositPropertiesHibernate);
         DepositStatusUpdater depositStatusUpdater = proxyFactory.create(
             DepositStatusUpdater.class,
-            new Class[] { DepositPropertiesDAO.class },
-            new Object[] { depositPropertiesDAO });
+            new Class[] { DepositPropertiesDAO.class, DepositIndex.class, DepositStatistics.class, IoBudget.class },
+            new Object[] { depositPropertiesDAO, depositIndex, depositStatistics, ioBudget });
+
+        DepositImporter depositImporter = proxyFactory.create(
+            DepositImporter.class,
+            new Class[] { DepositPropertiesDAO.class, DepositIndex.class, DepositStatistics.class, boolean.class },
+            new Object[] { depositPropertiesDAO, depositIndex, depositStatistics, DatabaseDialect.isPostgreSQL(configuration.getDepositPropertiesDatabase()) });
+        environment.jersey().register(new DepositImportResource(depositImporter, environment.getObjectMapper()));
+
+        DepositBoxLocks depositBoxLocks = DepositBoxLocks.singleOwner;
+        if (sharedBoxOwnership) {
+            depositBoxLocks = new AdvisoryDepositBoxLocks(configuration.getDepositPropertiesDatabase());
+        }
+        else if (configuration.getBoxOwnership().isEnabled()) {
+            log.warn("Shared deposit box ownership requires PostgreSQL; this instance monitors all deposit boxes");
+        }
+        // Archiving, the storage size rescan and the stuck deposit detector work on all records, so with shared box ownership only one instance runs them
+        final SingleInstanceTasks singleInstanceTasks = new SingleInstanceTasks(depositBoxLocks);
+
+        if (configuration.getArchive().isEnabled()) {
+            DepositArchiver depositArchiver = proxyFactory.create(
+                DepositArchiver.class,
+                new Class[] { DepositPropertiesDAO.class, DepositIndex.class, DepositStatistics.class },
+                new Object[] { depositPropertiesDAO, depositIndex, depositStatistics });
+            environment.lifecycle().manage(new DepositArchiveTask(depositArchiver, configuration.getArchive(), singleInstanceTasks));
+        }
 
-        final IngestPathMonitor ingestPathMonitor = new IngestPathMonitor(configuration.getDepositBoxes(), depositStatusUpdater, configuration.getPollingInterval());
-        environment.lifecycle().manage(ingestPathMonitor);
+        if (configuration.getStuckDeposits().isEnabled()) {
+            StuckDepositFinder stuckDepositFinder = proxyFactory.create(StuckDepositFinder.class, DepositPropertiesDAO.class, depositPropertiesDAO);
+            StuckDepositDetector stuckDepositDetector = new StuckDepositDetector(stuckDepositFinder, depositEventBuffer, configuration.getStuckDeposits(), singleInstanceTasks,
+                environment.metrics());
+            environment.lifecycle().manage(stuckDepositDetector);
+            environment.jersey().register(new StuckDepositsResource(stuckDepositDetector));
+        }
+
+        final StorageSizeWorker storageSizeWorker = new StorageSizeWorker(depositStatusUpdater, folderSizer, configuration.getStorageSize(), singleInstanceTasks, environment.metrics());
+        environment.lifecycle().manage(storageSizeWorker);
+
+        // Managed objects are started in order of registration: the queue must be ready before the monitors send events to it
+        final DepositLag depositLag = new DepositLag(environment.metrics(), configuration.getLag());
+        final DepositEventQueue depositEventQueue = new DepositEventQueue(depositStatusUpdater, depositEventBuffer, storageSizeWorker, depositLag, configuration.getEventQueue());
+        environment.lifecycle().manage(depositEventQueue);
+        environment.healthChecks().register("DepositEventQueue", new DepositEventQueueHealthCheck(depositEventQueue));
+        environment.jersey().register(new DepositLagResource(depositLag));
+        environment.healthChecks().register("DepositLag", new DepositLagHealthCheck(depositLag));
+
+        final DepositMoveCorrelator depositMoveCorrelator = new DepositMoveCorrelator(depositEventQueue, configuration.getEventQueue().getMoveWindow());
+        environment.lifecycle().manage(depositMoveCorrelator);
+
+        final DepositBoxReconciler depositBoxReconciler = new DepositBoxReconciler(depositStatusUpdater, depositMoveCorrelator, ioBudget);
+        final IngestPathMonitor ingestPathMonitor = new IngestPathMonitor(depositMoveCorrelator, depositBoxReconciler, configuration.getPollingInterval(), configuration.getPolling(),
+            configuration.getDepositBoxes().size(), ioBudget, environment.metrics());
+        if (sharedBoxOwnership) {
+            // The other instances change the counted deposits as well
+            environment.lifecycle().manage(new DepositStatisticsRefresher(depositStatusUpdater, configuration.getBoxOwnership().getStatisticsRefreshInterval()));
+        }
+        environment.lifecycle().manage(new DepositBoxCoordinator(configuration.getDepositBoxes(), ingestPathMonitor, depositBoxLocks,
+            configuration.getBoxOwnership().getClaimInterval(), environment.metrics()));
+
+    }
 
+    private static boolean isSharedBoxOwnership(DdManageDepositConfiguration configuration) {
+        return configuration.getBoxOwnership().isEnabled() && DatabaseDialect.isPostgreSQL(configuration.getDepositPropertiesDatabase());
     }
 
 }
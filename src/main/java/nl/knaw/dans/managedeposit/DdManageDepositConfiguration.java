@@ -16,8 +16,23 @@
 
 package nl.knaw.dans.managedeposit;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.dropwizard.core.Configuration;
 import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.validation.ValidationMethod;
+import nl.knaw.dans.managedeposit.config.ArchiveConfig;
+import nl.knaw.dans.managedeposit.config.BoxOwnershipConfig;
+import nl.knaw.dans.managedeposit.config.DepositEventQueueConfig;
+import nl.knaw.dans.managedeposit.config.DepositEventsConfig;
+import nl.knaw.dans.managedeposit.config.DepositIndexConfig;
+import nl.knaw.dans.managedeposit.config.FolderSizeConfig;
+import nl.knaw.dans.managedeposit.config.InboxHealthConfig;
+import nl.knaw.dans.managedeposit.config.IoBudgetConfig;
+import nl.knaw.dans.managedeposit.config.LagConfig;
+import nl.knaw.dans.managedeposit.config.PollingConfig;
+import nl.knaw.dans.managedeposit.config.ReportSerializationConfig;
+import nl.knaw.dans.managedeposit.config.StorageSizeConfig;
+import nl.knaw.dans.managedeposit.config.StuckDepositsConfig;
 import nl.knaw.dans.managedeposit.core.service.TextTruncation;
 
 import javax.validation.Valid;
@@ -35,6 +50,58 @@ public class DdManageDepositConfiguration extends Configuration {
 
     private List<Path> depositBoxes = new ArrayList<>();
 
+    @Valid
+    @NotNull
+    private DepositIndexConfig depositIndex = new DepositIndexConfig();
+
+    @Valid
+    @NotNull
+    private DepositEventsConfig events = new DepositEventsConfig();
+
+    @Valid
+    @NotNull
+    private DepositEventQueueConfig eventQueue = new DepositEventQueueConfig();
+
+    @Valid
+    @NotNull
+    private FolderSizeConfig folderSize = new FolderSizeConfig();
+
+    @Valid
+    @NotNull
+    private StorageSizeConfig storageSize = new StorageSizeConfig();
+
+    @Valid
+    @NotNull
+    private ArchiveConfig archive = new ArchiveConfig();
+
+    @Valid
+    @NotNull
+    private BoxOwnershipConfig boxOwnership = new BoxOwnershipConfig();
+
+    @Valid
+    @NotNull
+    private PollingConfig polling = new PollingConfig();
+
+    @Valid
+    @NotNull
+    private LagConfig lag = new LagConfig();
+
+    @Valid
+    @NotNull
+    private ReportSerializationConfig reportSerialization = new ReportSerializationConfig();
+
+    @Valid
+    @NotNull
+    private IoBudgetConfig ioBudget = new IoBudgetConfig();
+
+    @Valid
+    @NotNull
+    private InboxHealthConfig inboxHealth = new InboxHealthConfig();
+
+    @Valid
+    @NotNull
+    private StuckDepositsConfig stuckDeposits = new StuckDepositsConfig();
+
     public List<Path> getDepositBoxes() {
         return depositBoxes;
     }
@@ -58,4 +125,117 @@ public class DdManageDepositConfiguration extends Configuration {
     public void setPollingInterval(long pollingInterval) {
         this.pollingInterval = pollingInterval;
     }
+
+    public DepositIndexConfig getDepositIndex() {
+        return depositIndex;
+    }
+
+    public void setDepositIndex(DepositIndexConfig depositIndex) {
+        this.depositIndex = depositIndex;
+    }
+
+    public DepositEventsConfig getEvents() {
+        return events;
+    }
+
+    public void setEvents(DepositEventsConfig events) {
+        this.events = events;
+    }
+
+    public DepositEventQueueConfig getEventQueue() {
+        return eventQueue;
+    }
+
+    public void setEventQueue(DepositEventQueueConfig eventQueue) {
+        this.eventQueue = eventQueue;
+    }
+
+    public FolderSizeConfig getFolderSize() {
+        return folderSize;
+    }
+
+    public void setFolderSize(FolderSizeConfig folderSize) {
+        this.folderSize = folderSize;
+    }
+
+    public StorageSizeConfig getStorageSize() {
+        return storageSize;
+    }
+
+    public void setStorageSize(StorageSizeConfig storageSize) {
+        this.storageSize = storageSize;
+    }
+
+    public ArchiveConfig getArchive() {
+        return archive;
+    }
+
+    public void setArchive(ArchiveConfig archive) {
+        this.archive = archive;
+    }
+
+    public BoxOwnershipConfig getBoxOwnership() {
+        return boxOwnership;
+    }
+
+    public void setBoxOwnership(BoxOwnershipConfig boxOwnership) {
+        this.boxOwnership = boxOwnership;
+    }
+
+    public PollingConfig getPolling() {
+        return polling;
+    }
+
+    public void setPolling(PollingConfig polling) {
+        this.polling = polling;
+    }
+
+    public LagConfig getLag() {
+        return lag;
+    }
+
+    public void setLag(LagConfig lag) {
+        this.lag = lag;
+    }
+
+    public ReportSerializationConfig getReportSerialization() {
+        return reportSerialization;
+    }
+
+    public void setReportSerialization(ReportSerializationConfig reportSerialization) {
+        this.reportSerialization = reportSerialization;
+    }
+
+    public IoBudgetConfig getIoBudget() {
+        return ioBudget;
+    }
+
+    public void setIoBudget(IoBudgetConfig ioBudget) {
+        this.ioBudget = ioBudget;
+    }
+
+    public InboxHealthConfig getInboxHealth() {
+        return inboxHealth;
+    }
+
+    public void setInboxHealth(InboxHealthConfig inboxHealth) {
+        this.inboxHealth = inboxHealth;
+    }
+
+    public StuckDepositsConfig getStuckDeposits() {
+        return stuckDeposits;
+    }
+
+    public void setStuckDeposits(StuckDepositsConfig stuckDeposits) {
+        this.stuckDeposits = stuckDeposits;
+    }
+
+    // A delete that is held back for a shorter time than the other box takes to notice the create is never paired into a move
+    @JsonIgnore
+    @ValidationMethod(message = "eventQueue.moveWindow must be longer than the longest polling interval of the deposit boxes")
+    public boolean isMoveWindowLongerThanPollingInterval() {
+        if (eventQueue == null || eventQueue.getMoveWindow() == null || polling == null || polling.getMaxInterval() == null || polling.getBoxes() == null)
+            return true;
+        return eventQueue.getMoveWindow().toMilliseconds() > polling.longestInterval(pollingInterval);
+    }
 }
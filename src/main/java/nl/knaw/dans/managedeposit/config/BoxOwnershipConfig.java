@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.config;
+
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.NotNull;
+
+public class BoxOwnershipConfig {
+    private boolean enabled = false;
+
+    @NotNull
+    private Duration claimInterval = Duration.seconds(30);
+
+    @NotNull
+    private Duration statisticsRefreshInterval = Duration.minutes(1);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Duration getClaimInterval() {
+        return claimInterval;
+    }
+
+    public void setClaimInterval(Duration claimInterval) {
+        this.claimInterval = claimInterval;
+    }
+
+    public Duration getStatisticsRefreshInterval() {
+        return statisticsRefreshInterval;
+    }
+
+    public void setStatisticsRefreshInterval(Duration statisticsRefreshInterval) {
+        this.statisticsRefreshInterval = statisticsRefreshInterval;
+    }
+}
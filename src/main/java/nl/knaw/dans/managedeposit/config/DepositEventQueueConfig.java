@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.config;
+
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.nio.file.Path;
+
+public class DepositEventQueueConfig {
+    @NotNull
+    private Path journal = Path.of("data/deposit-events.journal");
+
+    @Min(1)
+    private int capacity = 10_000;
+
+    @NotNull
+    private Duration initialBackoff = Duration.seconds(1);
+
+    @NotNull
+    private Duration maxBackoff = Duration.minutes(1);
+
+    @Min(1)
+    private int failureThreshold = 5;
+
+    @NotNull
+    private Duration openDuration = Duration.seconds(30);
+
+    @Min(1)
+    private int maxAttempts = 3;
+
+    @NotNull
+    private Duration moveWindow = Duration.seconds(15);
+
+    public Path getJournal() {
+        return journal;
+    }
+
+    public void setJournal(Path journal) {
+        this.journal = journal;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public void setInitialBackoff(Duration initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public void setMaxBackoff(Duration maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public Duration getOpenDuration() {
+        return openDuration;
+    }
+
+    public void setOpenDuration(Duration openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public Duration getMoveWindow() {
+        return moveWindow;
+    }
+
+    public void setMoveWindow(Duration moveWindow) {
+        this.moveWindow = moveWindow;
+    }
+}
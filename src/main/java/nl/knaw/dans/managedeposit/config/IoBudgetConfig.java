@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.config;
+
+import javax.validation.constraints.Min;
+
+public class IoBudgetConfig {
+    // 0 means unlimited
+    @Min(0)
+    private int statCallsPerSecond = 0;
+
+    @Min(1)
+    private int burst = 1000;
+
+    @Min(0)
+    private int reserve = 100;
+
+    public int getStatCallsPerSecond() {
+        return statCallsPerSecond;
+    }
+
+    public void setStatCallsPerSecond(int statCallsPerSecond) {
+        this.statCallsPerSecond = statCallsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public int getReserve() {
+        return reserve;
+    }
+
+    public void setReserve(int reserve) {
+        this.reserve = reserve;
+    }
+}
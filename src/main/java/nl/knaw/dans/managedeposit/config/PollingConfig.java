@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.config;
+
+import io.dropwizard.util.Duration;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PollingConfig {
+    private boolean adaptive = false;
+
+    @NotNull
+    private Duration maxInterval = Duration.minutes(1);
+
+    // Keyed by the path of the deposit box, as listed in depositBoxes
+    @Valid
+    @NotNull
+    private Map<String, BoxPollingConfig> boxes = new HashMap<>();
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public Duration getMaxInterval() {
+        return maxInterval;
+    }
+
+    public void setMaxInterval(Duration maxInterval) {
+        this.maxInterval = maxInterval;
+    }
+
+    public Map<String, BoxPollingConfig> getBoxes() {
+        return boxes;
+    }
+
+    public void setBoxes(Map<String, BoxPollingConfig> boxes) {
+        this.boxes = boxes;
+    }
+
+    /**
+     * The longest interval, in milliseconds, at which any of the deposit boxes may be polled, with <code>defaultInterval</code> as the interval of the boxes that do not have
+     * their own.
+     */
+    public long longestInterval(long defaultInterval) {
+        long longest = adaptive ? Math.max(defaultInterval, maxInterval.toMilliseconds()) : defaultInterval;
+        for (BoxPollingConfig box : boxes.values()) {
+            long interval = box.getInterval() != null ? box.getInterval().toMilliseconds() : defaultInterval;
+            boolean boxAdaptive = box.getAdaptive() != null ? box.getAdaptive() : adaptive;
+            Duration boxMaxInterval = box.getMaxInterval() != null ? box.getMaxInterval() : maxInterval;
+            longest = Math.max(longest, boxAdaptive ? Math.max(interval, boxMaxInterval.toMilliseconds()) : interval);
+        }
+        return longest;
+    }
+}
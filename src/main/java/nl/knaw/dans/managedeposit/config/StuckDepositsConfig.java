@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.config;
+
+import io.dropwizard.util.Duration;
+
+import javax.validation.constraints.NotNull;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StuckDepositsConfig {
+    private boolean enabled = true;
+
+    @NotNull
+    private Duration interval = Duration.minutes(1);
+
+    @NotNull
+    private Duration rescanInterval = Duration.hours(1);
+
+    // Maximum time a deposit may stay in a state without being updated, per state label
+    @NotNull
+    private Map<String, Duration> thresholds = new HashMap<>(Map.of(
+        "SUBMITTED", Duration.hours(1),
+        "FINALIZING", Duration.hours(1)));
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Duration getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Duration interval) {
+        this.interval = interval;
+    }
+
+    public Duration getRescanInterval() {
+        return rescanInterval;
+    }
+
+    public void setRescanInterval(Duration rescanInterval) {
+        this.rescanInterval = rescanInterval;
+    }
+
+    public Map<String, Duration> getThresholds() {
+        return thresholds;
+    }
+
+    public void setThresholds(Map<String, Duration> thresholds) {
+        this.thresholds = thresholds;
+    }
+}
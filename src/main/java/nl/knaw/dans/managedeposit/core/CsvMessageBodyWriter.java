@@ -15,10 +15,12 @@
  */
 package nl.knaw.dans.managedeposit.core;
 
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import nl.knaw.dans.managedeposit.core.service.ChunkedSerializer;
 
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
@@ -31,11 +33,17 @@ import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.List;
+import java.util.Map;
 
 // Copied from http://www.javaprocess.com/2015/08/a-simple-csv-messagebodywriter-for-jax.html
 @Provider
 @Produces("text/csv")
 public class CsvMessageBodyWriter implements MessageBodyWriter<List<DepositProperties>> {
+    private final ChunkedSerializer chunkedSerializer;
+
+    public CsvMessageBodyWriter(ChunkedSerializer chunkedSerializer) {
+        this.chunkedSerializer = chunkedSerializer;
+    }
 
     @Override
     public boolean isWriteable(Class type, Type genericType, Annotation[] annotations, MediaType mediaType) {
@@ -49,14 +57,30 @@ public class CsvMessageBodyWriter implements MessageBodyWriter<List<DepositPrope
             // TODO: pass the mapper in at configuration time
             CsvMapper mapper = new CsvMapper();
             Object o = data.get(0);
-            CsvSchema schema = mapper.schemaFor(o.getClass())
-                .withHeader()
-                .sortedBy("depositor", "depositId", "bagName", "depositState", "depositCreationTimestamp", "depositUpdateTimestamp", "description", "location", "storageInBytes", "deleted")
+            CsvSchema schema;
+            if (o instanceof Map) {
+                // A projection on the requested columns
+                CsvSchema.Builder builder = CsvSchema.builder().setUseHeader(true);
+                ((Map<?, ?>) o).keySet().forEach(column -> builder.addColumn(column.toString()));
+                schema = builder.build();
+            }
+            else {
+                schema = mapper.schemaFor(o.getClass())
+                    .withHeader()
+                    .sortedBy(DepositProperties.reportColumns.toArray(new String[0]))
                     .rebuild().build();
+            }
 
             mapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
             mapper.registerModule(new JavaTimeModule());
-            mapper.writer(schema).writeValue(outputStream, data);
+            if (chunkedSerializer.isParallel(data.size())) {
+                ObjectWriter withHeader = mapper.writer(schema);
+                ObjectWriter withoutHeader = mapper.writer(schema.withoutHeader());
+                chunkedSerializer.write((List<?>) data, outputStream, (chunk, first) -> (first ? withHeader : withoutHeader).writeValueAsBytes(chunk));
+            }
+            else {
+                mapper.writer(schema).writeValue(outputStream, data);
+            }
         }
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.OffsetDateTime;
+
+/**
+ * A change to a deposit record, as applied by the monitor of the deposit boxes. Its <code>id</code> consists of the epoch of the event buffer and the sequence number, so that an id
+ * from an earlier run of the service, or from another instance, is not mistaken for one of the current run.
+ */
+public class DepositEvent {
+
+    public enum Type {
+        CREATED,
+        CHANGED,
+        MOVED,
+        DELETED
+    }
+
+    private final String epoch;
+    private final long sequence;
+    private final Type type;
+    private final String depositId;
+    private final String location;
+    private final String depositState;
+    private final OffsetDateTime timestamp;
+    private final boolean storageSizePending;
+
+    public DepositEvent(Type type, String depositId, String location, String depositState) {
+        this(type, depositId, location, depositState, false);
+    }
+
+    public DepositEvent(Type type, String depositId, String location, String depositState, boolean storageSizePending) {
+        this(null, 0, type, depositId, location, depositState, OffsetDateTime.now(), storageSizePending);
+    }
+
+    private DepositEvent(String epoch, long sequence, Type type, String depositId, String location, String depositState, OffsetDateTime timestamp, boolean storageSizePending) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.type = type;
+        this.depositId = depositId;
+        this.location = location;
+        this.depositState = depositState;
+        this.timestamp = timestamp;
+        this.storageSizePending = storageSizePending;
+    }
+
+    public DepositEvent withSequence(String epoch, long sequence) {
+        return new DepositEvent(epoch, sequence, type, depositId, location, depositState, timestamp, storageSizePending);
+    }
+
+    public String getId() {
+        return epoch + "-" + sequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getDepositId() {
+        return depositId;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public String getDepositState() {
+        return depositState;
+    }
+
+    public OffsetDateTime getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Whether the record has been saved without a storage size, which must still be computed. Used within the service only; it is not published.
+     */
+    @JsonIgnore
+    public boolean isStorageSizePending() {
+        return storageSizePending;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.List;
+
+/**
+ * The events following a given event. <code>truncated</code> is set when events after that event have already been evicted from the buffer, or when the event is from an earlier run
+ * of the service or from another instance, so that the consumer knows it has to resynchronize with a full report. The consumer resumes from <code>lastEventId</code>.
+ */
+public class DepositEventBatch {
+    private final List<DepositEvent> events;
+    private final String epoch;
+    private final long lastSequence;
+    private final boolean truncated;
+
+    public DepositEventBatch(List<DepositEvent> events, String epoch, long lastSequence, boolean truncated) {
+        this.events = events;
+        this.epoch = epoch;
+        this.lastSequence = lastSequence;
+        this.truncated = truncated;
+    }
+
+    public List<DepositEvent> getEvents() {
+        return events;
+    }
+
+    @JsonIgnore
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public String getLastEventId() {
+        return epoch + "-" + lastSequence;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Selection of deposit records, parsed and validated once from the query parameters of a request. The filter compiles to a JPQL <code>where</code> clause on the alias
+ * {@value #alias}, with every value bound as a parameter. The clause only depends on the shape of the filter (which criteria, with how many values), and is cached by shape, so
+ * that equal shapes produce the same query string and reuse the Hibernate query plan and the prepared statements of the database.
+ */
+public final class DepositFilter {
+    public static final String alias = "e";
+
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final char likeEscape = '\\';
+    private static final int maxCachedShapes = 1000;
+    private static final Map<String, String> whereClauses = new ConcurrentHashMap<>();
+
+    public enum Criterion {
+        DEPOSIT_ID("depositId"),
+        USER("user"),
+        STATE("state"),
+        DELETED("deleted"),
+        Q("q"),
+        DESCRIPTION_CONTAINS("descriptionContains"),
+        BAG_NAME_PREFIX("bagNamePrefix"),
+        START_DATE("startdate"),
+        END_DATE("enddate"),
+        // Exact matches on the attributes of the record; these were accepted by their attribute name before the parameters were validated, and are kept for existing clients
+        DEPOSITOR("depositor"),
+        BAG_NAME("bagName"),
+        DEPOSIT_STATE("depositState"),
+        DESCRIPTION("description"),
+        LOCATION("location");
+
+        private final String parameterName;
+
+        Criterion(String parameterName) {
+            this.parameterName = parameterName;
+        }
+
+        public String getParameterName() {
+            return parameterName;
+        }
+
+        // Parameter names are matched case-insensitively
+        static Criterion of(String parameterName) {
+            for (Criterion criterion : values()) {
+                if (criterion.parameterName.equalsIgnoreCase(parameterName))
+                    return criterion;
+            }
+            throw new IllegalArgumentException(String.format("Unknown parameter '%s'; possible parameters: %s", parameterName,
+                Arrays.stream(values()).map(Criterion::getParameterName).collect(Collectors.joining(", "))));
+        }
+    }
+
+    private static final DepositFilter empty = new DepositFilter(new EnumMap<>(Criterion.class));
+
+    private final EnumMap<Criterion, List<Object>> criteria;
+    private final String shape;
+
+    private DepositFilter(EnumMap<Criterion, List<Object>> criteria) {
+        this.criteria = criteria;
+        this.shape = criteria.entrySet().stream()
+            .map(e -> e.getKey() + ":" + e.getValue().size())
+            .collect(Collectors.joining(","));
+    }
+
+    public static DepositFilter empty() {
+        return empty;
+    }
+
+    /**
+     * Parses the query parameters of a request. Values of the same parameter are combined with OR, different parameters with AND.
+     *
+     * @throws IllegalArgumentException if a parameter is unknown or a value cannot be parsed
+     */
+    public static DepositFilter parse(Map<String, List<String>> queryParameters) {
+        EnumMap<Criterion, List<Object>> criteria = new EnumMap<>(Criterion.class);
+        for (Map.Entry<String, List<String>> parameter : queryParameters.entrySet()) {
+            Criterion criterion = Criterion.of(parameter.getKey());
+            for (String value : parameter.getValue()) {
+                criteria.computeIfAbsent(criterion, c -> new ArrayList<>()).add(parseValue(criterion, value));
+            }
+        }
+        return criteria.isEmpty() ? empty : new DepositFilter(criteria);
+    }
+
+    private static Object parseValue(Criterion criterion, String value) {
+        if (value.indexOf('\0') >= 0)
+            throw new IllegalArgumentException(String.format("Invalid value for '%s': contains a NUL character", criterion.getParameterName()));
+
+        switch (criterion) {
+            case DELETED:
+                if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value))
+                    throw new IllegalArgumentException(String.format("Invalid value for 'deleted': '%s'; must be true or false", value));
+                return Boolean.parseBoolean(value);
+
+            case Q:
+            case DESCRIPTION_CONTAINS:
+                return "%" + escapeLike(value.toLowerCase(Locale.ROOT)) + "%";
+
+            case BAG_NAME_PREFIX:
+                return escapeLike(value.toLowerCase(Locale.ROOT)) + "%";
+
+            case START_DATE:
+            case END_DATE:
+                try {
+                    return OffsetDateTime.of(LocalDate.parse(value, dateFormatter).atStartOfDay(), ZoneOffset.UTC);
+                }
+                catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException(String.format("Invalid value for '%s': '%s'; must be formatted as yyyy-MM-dd", criterion.getParameterName(), value));
+                }
+
+            default:
+                return value;
+        }
+    }
+
+    public boolean isEmpty() {
+        return criteria.isEmpty();
+    }
+
+    public Set<Criterion> getCriteria() {
+        return Collections.unmodifiableSet(criteria.keySet());
+    }
+
+    public boolean has(Criterion criterion) {
+        return criteria.containsKey(criterion);
+    }
+
+    public List<Object> getValues(Criterion criterion) {
+        return Collections.unmodifiableList(criteria.getOrDefault(criterion, List.of()));
+    }
+
+    /**
+     * The criteria and their number of values; filters with the same shape compile to the same query.
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * The JPQL <code>where</code> clause, including a leading space, or an empty string for an empty filter.
+     */
+    public String getWhereClause() {
+        if (criteria.isEmpty())
+            return "";
+        String whereClause = whereClauses.get(shape);
+        if (whereClause == null) {
+            whereClause = compile();
+            // The number of shapes is small in practice; do not let unusual requests grow the cache without bound
+            if (whereClauses.size() < maxCachedShapes)
+                whereClauses.putIfAbsent(shape, whereClause);
+        }
+        return whereClause;
+    }
+
+    /**
+     * The values to bind to the named parameters of {@link #getWhereClause()}.
+     */
+    public Map<String, Object> getParameters() {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        int index = 0;
+        for (List<Object> values : criteria.values()) {
+            for (Object value : values) {
+                parameters.put("p" + index++, value);
+            }
+        }
+        return parameters;
+    }
+
+    private String compile() {
+        List<String> conjuncts = new ArrayList<>();
+        int index = 0;
+        for (Map.Entry<Criterion, List<Object>> entry : criteria.entrySet()) {
+            List<String> disjuncts = new ArrayList<>();
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                disjuncts.add(condition(entry.getKey(), ":p" + index++));
+            }
+            conjuncts.add("(" + String.join(" or ", disjuncts) + ")");
+        }
+        return " where " + String.join(" and ", conjuncts);
+    }
+
+    private static String condition(Criterion criterion, String parameter) {
+        switch (criterion) {
+            case DEPOSIT_ID:
+                return alias + ".depositId = " + parameter;
+            case USER:
+                return alias + ".depositor = " + parameter;
+            case STATE:
+                return alias + ".depositState = " + parameter;
+            case DELETED:
+                return alias + ".deleted = " + parameter;
+            // On PostgreSQL the lower(...) like conditions match the trigram indexes created by SearchIndexInitializer; elsewhere they are plain scans
+            case Q:
+                return "(" + like("description", parameter) + " or " + like("bagName", parameter) + " or " + like("depositId", parameter) + ")";
+            case DESCRIPTION_CONTAINS:
+                return like("description", parameter);
+            case BAG_NAME_PREFIX:
+                return like("bagName", parameter);
+            case START_DATE:
+                return alias + ".depositCreationTimestamp > " + parameter;
+            case END_DATE:
+                return alias + ".depositCreationTimestamp < " + parameter;
+            case DEPOSITOR:
+                return alias + ".depositor = " + parameter;
+            case BAG_NAME:
+                return alias + ".bagName = " + parameter;
+            case DEPOSIT_STATE:
+                return alias + ".depositState = " + parameter;
+            case DESCRIPTION:
+                return alias + ".description = " + parameter;
+            case LOCATION:
+                return alias + ".location = " + parameter;
+            default:
+                throw new IllegalStateException("Unhandled criterion: " + criterion);
+        }
+    }
+
+    private static String like(String attribute, String parameter) {
+        return "lower(" + alias + "." + attribute + ") like " + parameter + " escape '" + likeEscape + "'";
+    }
+
+    private static String escapeLike(String value) {
+        return value
+            .replace(String.valueOf(likeEscape), String.valueOf(likeEscape) + likeEscape)
+            .replace("%", likeEscape + "%")
+            .replace("_", likeEscape + "_");
+    }
+
+    @Override
+    public String toString() {
+        return "DepositFilter{" + shape + "}";
+    }
+}
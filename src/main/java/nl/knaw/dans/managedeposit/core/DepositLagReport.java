@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import java.util.Map;
+
+/**
+ * Freshness of the database with respect to the deposit boxes: per box, the distribution of the time between the last modification of a <code>deposit.properties</code> file and the
+ * commit of the change, over the recent window; and the age of the oldest change that has not been applied yet. All durations are in milliseconds.
+ */
+public class DepositLagReport {
+    private final long oldestPendingAge;
+    private final long threshold;
+    private final Map<String, BoxLag> boxes;
+
+    public DepositLagReport(long oldestPendingAge, long threshold, Map<String, BoxLag> boxes) {
+        this.oldestPendingAge = oldestPendingAge;
+        this.threshold = threshold;
+        this.boxes = boxes;
+    }
+
+    public static class BoxLag {
+        private final long count;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        private final long max;
+
+        public BoxLag(long count, long p50, long p95, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
+    public long getOldestPendingAge() {
+        return oldestPendingAge;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public Map<String, BoxLag> getBoxes() {
+        return boxes;
+    }
+}
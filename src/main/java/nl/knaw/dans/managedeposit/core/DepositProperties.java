@@ -16,23 +16,49 @@
 package nl.knaw.dans.managedeposit.core;
 
 import nl.knaw.dans.managedeposit.core.service.TextTruncation;
+import nl.knaw.dans.managedeposit.db.DepositBoxConverter;
+import nl.knaw.dans.managedeposit.db.DepositStateConverter;
+import nl.knaw.dans.managedeposit.db.DepositorConverter;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
+import javax.persistence.Convert;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import java.time.OffsetDateTime;
+import java.util.List;
 
 @Entity
-@Table(name = "deposit_properties")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = DepositProperties.cacheRegion)
+// The stuck deposit detector looks for deposits by state and update timestamp
+@Table(name = "deposit_properties", indexes = @Index(name = "deposit_properties_state_update_idx", columnList = "deposit_state_id, deposit_update_timestamp"))
 @NamedQuery(
     name = "showAll",
     query = "SELECT dp FROM DepositProperties dp"
 )
 public class DepositProperties {
+    public static final String cacheRegion = "depositProperties";
+
+    // Value of storageInBytes until the StorageSizeWorker has walked the deposit
+    public static final long storageSizePending = -1;
+
+    // Value of storageInBytes after the StorageSizeWorker has given up on the deposit; it is tried again when deposit.properties changes
+    public static final long storageSizeFailed = -2;
+
+    // Columns of a report, in the order in which they are written
+    public static final List<String> reportColumns = List.of(
+        "depositor", "depositId", "bagName", "depositState", "depositCreationTimestamp", "depositUpdateTimestamp", "description", "location", "storageInBytes", "deleted");
 
-    @Column(name = "depositor", nullable = false)                          // depositor.userId
+    // The depositor, state and location are stored as keys into small lookup tables, see DepositDictionary
+    @Convert(converter = DepositorConverter.class)
+    @Column(name = "depositor_id", nullable = false)                       // depositor.userId
     private String depositor;
     @Id
     @Column(name = "deposit_id", nullable = false)                         // deposit directory name
@@ -40,7 +66,8 @@ public class DepositProperties {
     @Column(name = "bag_name", nullable = false)                           // Bag directory name
     private String bagName;
 
-    @Column(name = "deposit_state")                                        // state.label
+    @Convert(converter = DepositStateConverter.class)
+    @Column(name = "deposit_state_id")                                     // state.label
     private String depositState;
 
     @Column(name = "deposit_creation_timestamp")                           // creation.timestamp
@@ -52,7 +79,8 @@ public class DepositProperties {
     @Column(name = "description", length = TextTruncation.maxDescriptionLength)   // state.description
     private String description;
 
-    @Column(name = "location", length = TextTruncation.maxDirectoryLength)        // full parent-path on disk
+    @Convert(converter = DepositBoxConverter.class)
+    @Column(name = "location_id")                                          // full parent-path on disk
     private String location;
 
     @Column(name = "storage_in_bytes")                                     // Total storage of deposit directory
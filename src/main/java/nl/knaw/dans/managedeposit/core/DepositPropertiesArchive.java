@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import nl.knaw.dans.managedeposit.core.service.TextTruncation;
+import nl.knaw.dans.managedeposit.db.DepositBoxConverter;
+import nl.knaw.dans.managedeposit.db.DepositStateConverter;
+import nl.knaw.dans.managedeposit.db.DepositorConverter;
+
+import javax.persistence.Column;
+import javax.persistence.Convert;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.time.OffsetDateTime;
+
+/**
+ * A deposit record that has been moved out of <code>deposit_properties</code> by the archiver, because the deposit has been deleted or has been archived long ago.
+ */
+@Entity
+@Table(name = "deposit_properties_archive")
+public class DepositPropertiesArchive {
+
+    @Convert(converter = DepositorConverter.class)
+    @Column(name = "depositor_id", nullable = false)
+    private String depositor;
+    @Id
+    @Column(name = "deposit_id", nullable = false)
+    private String depositId;
+    @Column(name = "bag_name", nullable = false)
+    private String bagName;
+
+    @Convert(converter = DepositStateConverter.class)
+    @Column(name = "deposit_state_id")
+    private String depositState;
+
+    @Column(name = "deposit_creation_timestamp")
+    private OffsetDateTime depositCreationTimestamp;
+
+    @Column(name = "deposit_update_timestamp")
+    private OffsetDateTime depositUpdateTimestamp;
+
+    @Column(name = "description", length = TextTruncation.maxDescriptionLength)
+    private String description;
+
+    @Convert(converter = DepositBoxConverter.class)
+    @Column(name = "location_id")
+    private String location;
+
+    @Column(name = "storage_in_bytes")
+    private long storageInBytes;
+
+    @Column(name = "deleted")
+    private boolean deleted;
+
+    @Column(name = "archived_timestamp")                                   // moment the record was moved to the archive
+    private OffsetDateTime archivedTimestamp;
+
+    public DepositPropertiesArchive() {
+    }
+
+    public DepositPropertiesArchive(DepositProperties dp, OffsetDateTime archivedTimestamp) {
+        this.depositor = dp.getDepositor();
+        this.depositId = dp.getDepositId();
+        this.bagName = dp.getBagName();
+        this.depositState = dp.getDepositState();
+        this.depositCreationTimestamp = dp.getDepositCreationTimestamp();
+        this.depositUpdateTimestamp = dp.getDepositUpdateTimestamp();
+        this.description = dp.getDescription();
+        this.location = dp.getLocation();
+        this.storageInBytes = dp.getStorageInBytes();
+        this.deleted = dp.isDeleted();
+        this.archivedTimestamp = archivedTimestamp;
+    }
+
+    public DepositProperties toDepositProperties() {
+        DepositProperties dp = new DepositProperties(depositId, depositor, bagName, depositState, description, depositCreationTimestamp, location, storageInBytes);
+        dp.setDepositUpdateTimestamp(depositUpdateTimestamp);
+        dp.setDeleted(deleted);
+        return dp;
+    }
+
+    public String getDepositId() {
+        return depositId;
+    }
+
+    public OffsetDateTime getArchivedTimestamp() {
+        return archivedTimestamp;
+    }
+}
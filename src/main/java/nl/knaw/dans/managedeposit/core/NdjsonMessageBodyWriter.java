@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import nl.knaw.dans.managedeposit.core.service.ChunkedSerializer;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Writes a report as newline-delimited JSON: one record per line, so that consumers can process it while it is being received.
+ */
+@Provider
+@Produces(NdjsonMessageBodyWriter.APPLICATION_NDJSON)
+public class NdjsonMessageBodyWriter implements MessageBodyWriter<List<?>> {
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    private final ObjectWriter writer;
+    private final ChunkedSerializer chunkedSerializer;
+
+    public NdjsonMessageBodyWriter(ObjectMapper objectMapper, ChunkedSerializer chunkedSerializer) {
+        this.writer = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.chunkedSerializer = chunkedSerializer;
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return List.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public void writeTo(List<?> data, Class<?> aClass, Type type, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, Object> multivaluedMap, OutputStream outputStream)
+        throws IOException, WebApplicationException {
+        if (chunkedSerializer.isParallel(data.size())) {
+            chunkedSerializer.write(data, outputStream, (chunk, first) -> {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                writeRecords(chunk, buffer);
+                return buffer.toByteArray();
+            });
+        }
+        else {
+            writeRecords(data, outputStream);
+        }
+    }
+
+    private void writeRecords(List<?> records, OutputStream outputStream) throws IOException {
+        for (Object record : records) {
+            writer.writeValue(outputStream, record);
+            outputStream.write('\n');
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.managedeposit.config.ReportSerializationConfig;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes large reports on several threads: the records are split into chunks of <code>chunkSize</code>, each chunk is encoded to a byte array on a fork-join pool of
+ * <code>parallelism</code> threads, and the encoded chunks are written to the response in order. At most <code>maxChunksInFlight</code> chunks are encoded or waiting to be written
+ * at any time, which bounds the memory taken by a report beyond the records themselves. Reports of a single chunk are written by the request thread, as before.
+ */
+public class ChunkedSerializer implements Managed {
+    private final int chunkSize;
+    private final int maxChunksInFlight;
+    private final ForkJoinPool pool;
+
+    /**
+     * Encodes a chunk of records; the header of the report, if any, is written with the first chunk.
+     */
+    public interface ChunkEncoder<T> {
+        byte[] encode(List<T> chunk, boolean first) throws IOException;
+    }
+
+    public ChunkedSerializer(ReportSerializationConfig config) {
+        this.chunkSize = config.getChunkSize();
+        this.maxChunksInFlight = config.getMaxChunksInFlight();
+        this.pool = config.getParallelism() > 1 ? new ForkJoinPool(config.getParallelism()) : null;
+    }
+
+    public boolean isParallel(int size) {
+        return pool != null && size > chunkSize;
+    }
+
+    public <T> void write(List<T> data, OutputStream outputStream, ChunkEncoder<T> encoder) throws IOException {
+        Deque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<>();
+        try {
+            for (int from = 0; from < data.size(); from += chunkSize) {
+                final List<T> chunk = data.subList(from, Math.min(from + chunkSize, data.size()));
+                final boolean first = from == 0;
+                if (inFlight.size() >= maxChunksInFlight) {
+                    outputStream.write(join(inFlight.removeFirst()));
+                }
+                inFlight.addLast(pool.submit(() -> encoder.encode(chunk, first)));
+            }
+            while (!inFlight.isEmpty()) {
+                outputStream.write(join(inFlight.removeFirst()));
+            }
+        }
+        finally {
+            // The client may have gone away; do not encode what will not be written
+            inFlight.forEach(task -> task.cancel(true));
+        }
+    }
+
+    private static byte[] join(ForkJoinTask<byte[]> task) throws IOException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while serializing report");
+        }
+        catch (ExecutionException e) {
+            // The pool wraps the checked exceptions of a task in a RuntimeException
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+            }
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Could not serialize report", e.getCause());
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.managedeposit.config.ArchiveConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class DepositArchiveTask implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(DepositArchiveTask.class);
+
+    private final DepositArchiver depositArchiver;
+    private final ArchiveConfig config;
+    private final SingleInstanceTasks singleInstanceTasks;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "deposit-archiver"));
+
+    public DepositArchiveTask(DepositArchiver depositArchiver, ArchiveConfig config, SingleInstanceTasks singleInstanceTasks) {
+        this.depositArchiver = depositArchiver;
+        this.config = config;
+        this.singleInstanceTasks = singleInstanceTasks;
+    }
+
+    @Override
+    public void start() {
+        long interval = config.getInterval().toMilliseconds();
+        scheduler.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void run() {
+        if (!singleInstanceTasks.isOwner())
+            return;
+        OffsetDateTime archivedStateBefore = config.getArchivedStateRetention() == null ? null
+            : OffsetDateTime.now().minusSeconds(config.getArchivedStateRetention().toSeconds());
+        int total = 0;
+        try {
+            for (int batch = 0; batch < config.getMaxBatchesPerRun() && !Thread.currentThread().isInterrupted(); batch++) {
+                int archived = depositArchiver.archiveBatch(config.getBatchSize(), archivedStateBefore);
+                total += archived;
+                if (archived < config.getBatchSize())
+                    break;
+            }
+        }
+        catch (RuntimeException e) {
+            // Keep the schedule alive; the next run continues where this one stopped
+            log.warn("Archiving deposit records failed after {} record(s): {}", total, e.getMessage());
+        }
+        if (total > 0) {
+            log.info("Moved {} deposit record(s) to the archive", total);
+        }
+    }
+}
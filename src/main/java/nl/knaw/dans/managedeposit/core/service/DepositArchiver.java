@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.hibernate.UnitOfWork;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Moves the records of deleted (and optionally long-archived) deposits to the archive table, one batch per unit of work, so that the main table and its indexes only contain the
+ * deposits that are still being worked on.
+ */
+public class DepositArchiver {
+    private final DepositPropertiesDAO depositPropertiesDAO;
+    private final DepositIndex depositIndex;
+    private final DepositStatistics depositStatistics;
+
+    public DepositArchiver(DepositPropertiesDAO depositPropertiesDAO, DepositIndex depositIndex, DepositStatistics depositStatistics) {
+        this.depositPropertiesDAO = depositPropertiesDAO;
+        this.depositIndex = depositIndex;
+        this.depositStatistics = depositStatistics;
+    }
+
+    @UnitOfWork
+    public int archiveBatch(int batchSize, OffsetDateTime archivedStateBefore) {
+        List<DepositProperties> archived = depositPropertiesDAO.archiveBatch(batchSize, archivedStateBefore);
+        depositPropertiesDAO.afterCommit(() -> {
+            for (DepositProperties dp : archived) {
+                depositIndex.remove(dp.getDepositId());
+                depositStatistics.update(Optional.of(DepositIndex.entryOf(dp)), Optional.empty());
+            }
+        });
+        return archived.size();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which deposit boxes this instance monitors. Every claim interval, the instance claims unowned boxes up to its fair share (the number of boxes divided by the number of live
+ * instances), and releases boxes above its fair share so that a new instance can pick them up. When an instance dies, its locks are released by the database and the remaining
+ * instances take over its boxes in the next round. Only the owner of a box runs its {@link IngestPathMonitor}.
+ */
+public class DepositBoxCoordinator implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(DepositBoxCoordinator.class);
+
+    private final List<Path> depositBoxes;
+    private final IngestPathMonitor ingestPathMonitor;
+    private final DepositBoxLocks depositBoxLocks;
+    private final Duration claimInterval;
+    private final Set<Path> ownedBoxes = new LinkedHashSet<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "deposit-box-coordinator"));
+
+    public DepositBoxCoordinator(List<Path> depositBoxes, IngestPathMonitor ingestPathMonitor, DepositBoxLocks depositBoxLocks, Duration claimInterval, MetricRegistry metricRegistry) {
+        this.depositBoxes = new ArrayList<>(depositBoxes);
+        this.ingestPathMonitor = ingestPathMonitor;
+        this.depositBoxLocks = depositBoxLocks;
+        this.claimInterval = claimInterval;
+        metricRegistry.register(MetricRegistry.name(DepositBoxCoordinator.class, "ownedBoxes"), (Gauge<Integer>) () -> ingestPathMonitor.getMonitoredFolders().size());
+    }
+
+    @Override
+    public void start() {
+        // The first round runs on the scheduler thread as well, so that the rounds never overlap
+        long interval = claimInterval.toMilliseconds();
+        scheduler.scheduleWithFixedDelay(this::rebalance, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        releaseAll();
+        ingestPathMonitor.shutdown();
+    }
+
+    private synchronized void rebalance() {
+        try {
+            int instances = Math.max(1, depositBoxLocks.countInstances());
+            int fairShare = (depositBoxes.size() + instances - 1) / instances;
+
+            List<Path> owned = new ArrayList<>(ownedBoxes);
+            for (int i = owned.size() - 1; i >= fairShare; i--) {
+                release(owned.get(i));
+            }
+
+            for (Path box : depositBoxes) {
+                if (ownedBoxes.size() >= fairShare)
+                    break;
+                if (!ownedBoxes.contains(box) && depositBoxLocks.tryLock(box))
+                    claim(box);
+            }
+        }
+        catch (SQLException e) {
+            // Without the connection the locks are gone, and another instance may already be monitoring these boxes
+            log.warn("Lost the deposit box locks; stopping all monitors until they are claimed again: {}", e.getMessage());
+            releaseAll();
+        }
+        catch (RuntimeException e) {
+            log.error("Rebalancing the deposit boxes failed", e);
+        }
+    }
+
+    private void claim(Path box) throws SQLException {
+        try {
+            ingestPathMonitor.startMonitoring(box);
+            ownedBoxes.add(box);
+            log.info("Claimed deposit box '{}'", box);
+        }
+        catch (InvalidTransferItemException e) {
+            log.error(e.getMessage(), e);
+            depositBoxLocks.unlock(box);
+        }
+    }
+
+    private void release(Path box) throws SQLException {
+        ingestPathMonitor.stopMonitoring(box);
+        ownedBoxes.remove(box);
+        depositBoxLocks.unlock(box);
+        log.info("Released deposit box '{}' to another instance", box);
+    }
+
+    private synchronized void releaseAll() {
+        ingestPathMonitor.stopAll();
+        ownedBoxes.clear();
+        depositBoxLocks.close();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+/**
+ * Exclusive claims on deposit boxes, shared by all instances of the service. A claim ends when it is released or when the instance that holds it goes away.
+ */
+public interface DepositBoxLocks {
+
+    /**
+     * The number of live instances, including this one.
+     */
+    int countInstances() throws SQLException;
+
+    boolean tryLock(Path depositBox) throws SQLException;
+
+    void unlock(Path depositBox) throws SQLException;
+
+    /**
+     * Claims the tasks that run on a single instance, see {@link SingleInstanceTasks}, or confirms that this instance still holds them.
+     */
+    boolean tryLockTasks() throws SQLException;
+
+    /**
+     * Releases all claims of this instance.
+     */
+    void close();
+
+    /**
+     * Used when there is no shared database to coordinate through: this instance is the only one, and owns all deposit boxes.
+     */
+    DepositBoxLocks singleOwner = new DepositBoxLocks() {
+
+        @Override
+        public int countInstances() {
+            return 1;
+        }
+
+        @Override
+        public boolean tryLock(Path depositBox) {
+            return true;
+        }
+
+        @Override
+        public void unlock(Path depositBox) {
+        }
+
+        @Override
+        public boolean tryLockTasks() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+}
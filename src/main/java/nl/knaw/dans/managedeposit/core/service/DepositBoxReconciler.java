@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares a deposit box with the records in the database when this instance starts to monitor it. The monitor takes the contents of the box at that moment as its baseline, so
+ * deposits that were created, changed or removed while no instance was polling the box, such as after the last poll of its previous owner or while the service was down, would
+ * never be reported. The differences are passed to the {@link DepositMoveCorrelator} as if a poll had found them:
+ * <ul>
+ *     <li>a deposit without a record in this box, or with a deleted one, is created;</li>
+ *     <li>a deposit whose deposit.properties has been modified after its record was updated is changed;</li>
+ *     <li>a record in this box without a deposit is deleted.</li>
+ * </ul>
+ */
+public class DepositBoxReconciler {
+    private static final Logger log = LoggerFactory.getLogger(DepositBoxReconciler.class);
+
+    private final DepositStatusUpdater depositStatusUpdater;
+    private final DepositMoveCorrelator depositMoveCorrelator;
+    private final IoBudget ioBudget;
+
+    private static class Record {
+        private final boolean deleted;
+        private final long updated;
+
+        Record(boolean deleted, OffsetDateTime updated) {
+            this.deleted = deleted;
+            this.updated = updated != null ? updated.toInstant().toEpochMilli() : 0;
+        }
+    }
+
+    public DepositBoxReconciler(DepositStatusUpdater depositStatusUpdater, DepositMoveCorrelator depositMoveCorrelator, IoBudget ioBudget) {
+        this.depositStatusUpdater = depositStatusUpdater;
+        this.depositMoveCorrelator = depositMoveCorrelator;
+        this.ioBudget = ioBudget;
+    }
+
+    public void reconcile(Path box) {
+        File folder = box.toFile().getAbsoluteFile();
+        Map<String, Record> records = new HashMap<>();
+        for (Object[] row : depositStatusUpdater.findUpdatesByLocation(TextTruncation.stripBegin(folder.getAbsolutePath(), TextTruncation.maxDirectoryLength))) {
+            records.put((String) row[0], new Record((Boolean) row[1], (OffsetDateTime) row[2]));
+        }
+
+        ioBudget.acquire(IoBudget.Priority.LOW, 1);
+        File[] deposits = folder.listFiles(file -> !file.isHidden() && file.isDirectory());
+        if (deposits == null) {
+            log.warn("Cannot list deposit box '{}'; it is not reconciled with the database", box);
+            return;
+        }
+
+        int created = 0;
+        int changed = 0;
+        int deleted = 0;
+        for (File deposit : deposits) {
+            File depositPropertiesFile = new File(deposit, "deposit.properties");
+            ioBudget.acquire(IoBudget.Priority.LOW, 1);
+            long lastModified = depositPropertiesFile.lastModified();
+            if (lastModified == 0)
+                continue;
+
+            Record record = records.remove(deposit.getName());
+            if (record == null || record.deleted) {
+                created++;
+                depositMoveCorrelator.onCreate(depositPropertiesFile);
+            }
+            else if (lastModified > record.updated) {
+                changed++;
+                depositMoveCorrelator.onChange(depositPropertiesFile);
+            }
+        }
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            if (!entry.getValue().deleted) {
+                deleted++;
+                depositMoveCorrelator.onDelete(new File(new File(folder, entry.getKey()), "deposit.properties"));
+            }
+        }
+        log.info("Reconciled deposit box '{}' with the database: {} created, {} changed and {} deleted deposit(s)", box, created, changed, deleted);
+    }
+}
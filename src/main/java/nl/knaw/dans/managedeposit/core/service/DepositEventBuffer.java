@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import nl.knaw.dans.managedeposit.core.DepositEvent;
+import nl.knaw.dans.managedeposit.core.DepositEventBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded ring buffer of the most recent deposit events. Sequence numbers start at 1 and increase by one per event, so a consumer can resume from the last sequence number it has
+ * seen. They start again after a restart, and every instance of the service counts for itself, so the ids of the events also contain a random epoch, which is drawn anew for every
+ * buffer. Consumers that wait for new events register a listener instead of holding a thread.
+ */
+public class DepositEventBuffer {
+    private static final Logger log = LoggerFactory.getLogger(DepositEventBuffer.class);
+
+    private final String epoch = Long.toHexString(UUID.randomUUID().getMostSignificantBits());
+    private final DepositEvent[] ring;
+    private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+    private long lastSequence;
+
+    public DepositEventBuffer(int capacity) {
+        this.ring = new DepositEvent[capacity];
+    }
+
+    public DepositEvent publish(DepositEvent event) {
+        DepositEvent sequenced;
+        synchronized (this) {
+            sequenced = event.withSequence(epoch, ++lastSequence);
+            ring[(int) (lastSequence % ring.length)] = sequenced;
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException e) {
+                // The event has been applied; a consumer that cannot be notified must not fail the publisher
+                log.warn("Could not notify a consumer of deposit event {}: {}", sequenced.getSequence(), e.getMessage());
+            }
+        }
+        return sequenced;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Runs the listener after every published event, on the publishing thread, until it is removed. It must hand any real work to a thread of its own.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns at most <code>limit</code> events after <code>sequence</code>, without waiting.
+     */
+    public synchronized DepositEventBatch since(long sequence, int limit) {
+        long oldest = Math.max(1, lastSequence - ring.length + 1);
+        long from = Math.max(sequence + 1, oldest);
+        long to = Math.min(lastSequence, from + limit - 1);
+
+        List<DepositEvent> events = new ArrayList<>();
+        for (long s = from; s <= to; s++) {
+            events.add(ring[(int) (s % ring.length)]);
+        }
+        return new DepositEventBatch(events, epoch, events.isEmpty() ? Math.min(sequence, lastSequence) : to, sequence + 1 < oldest || sequence > lastSequence);
+    }
+
+    /**
+     * Returns at most <code>limit</code> events after the event with the given id, without waiting. An id of another epoch cannot be resumed from: the batch then starts at the
+     * oldest event in the buffer, and is marked as truncated.
+     */
+    public synchronized DepositEventBatch since(String eventId, int limit) {
+        int separator = eventId.lastIndexOf('-');
+        if (separator > 0 && eventId.substring(0, separator).equals(epoch)) {
+            try {
+                long sequence = Long.parseLong(eventId.substring(separator + 1));
+                if (sequence >= 0)
+                    return since(sequence, limit);
+            }
+            catch (NumberFormatException e) {
+                // Not an id of this buffer
+            }
+        }
+        DepositEventBatch batch = since(0, limit);
+        return new DepositEventBatch(batch.getEvents(), epoch, batch.getLastSequence(), true);
+    }
+}
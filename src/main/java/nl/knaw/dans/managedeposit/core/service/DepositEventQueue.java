@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.managedeposit.config.DepositEventQueueConfig;
+import nl.knaw.dans.managedeposit.core.DepositEvent;
+import org.hibernate.exception.JDBCConnectionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Decouples the file alteration monitors from the database. Events are appended to a local journal and handed to the {@link DepositStatusUpdater} by a single worker thread, in
+ * order. Database failures are retried with exponential backoff behind a circuit breaker; the event is only removed after it has been applied. When the queue is full, the monitor
+ * threads block, which delays the next scans instead of losing events. Events that are still in the journal at shutdown are replayed at the next start; lines that cannot be
+ * read, such as a line that was torn by a crash, are skipped and dropped from the journal. Deletes that the {@link DepositMoveCorrelator} holds back are journaled as well, until
+ * they are released; a held delete that was not released is replayed as a delete, unless the deposit.properties file is present again.
+ *
+ * The journal is flushed to the operating system after every event, but not forced to disk: it survives a crash of the service, but a power loss or a crash of the operating
+ * system can lose the most recent events.
+ */
+public class DepositEventQueue implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(DepositEventQueue.class);
+    private static final List<String> transientSqlStateClasses = List.of("08", "40", "53", "57");
+
+    // Journal entries of held deletes, which are not events themselves
+    private static final String hold = "HOLD";
+    private static final String release = "RELEASE";
+
+    public enum FileEventType {
+        CREATE,
+        CHANGE,
+        MOVE,
+        DELETE
+    }
+
+    public enum CircuitState {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    static class FileEvent {
+        private final FileEventType type;
+        private final File file;
+        // Events replayed from the journal count from the moment of the replay
+        private final Instant observed = Instant.now();
+        private int attempts;
+
+        FileEvent(FileEventType type, File file) {
+            this.type = type;
+            this.file = file;
+        }
+    }
+
+    private final DepositStatusUpdater depositStatusUpdater;
+    private final DepositEventBuffer depositEventBuffer;
+    private final StorageSizeWorker storageSizeWorker;
+    private final DepositLag depositLag;
+    private final DepositEventQueueConfig config;
+    private final BlockingQueue<FileEvent> queue;
+
+    // Guards the journal writer and the number of journaled events that have not been applied yet
+    private final Object journalLock = new Object();
+    private BufferedWriter journalWriter;
+    private int pending;
+    private boolean replaying;
+
+    private Thread worker;
+    private volatile boolean running;
+    private volatile FileEvent current;
+    private volatile CircuitState circuitState = CircuitState.CLOSED;
+    private volatile int consecutiveFailures;
+
+    public DepositEventQueue(DepositStatusUpdater depositStatusUpdater, DepositEventBuffer depositEventBuffer, StorageSizeWorker storageSizeWorker, DepositLag depositLag,
+        DepositEventQueueConfig config) {
+        this.depositStatusUpdater = depositStatusUpdater;
+        this.depositEventBuffer = depositEventBuffer;
+        this.storageSizeWorker = storageSizeWorker;
+        this.depositLag = depositLag;
+        this.config = config;
+        this.queue = new LinkedBlockingQueue<>(config.getCapacity());
+        depositLag.watchBacklog(this::getOldestPending);
+    }
+
+    @Override
+    public void start() throws Exception {
+        try {
+            depositStatusUpdater.loadDepositIndex();
+        }
+        catch (RuntimeException e) {
+            log.warn("Could not load the deposit index; lookups will go to the database: {}", e.getMessage());
+        }
+        try {
+            depositStatusUpdater.loadDepositStatistics();
+        }
+        catch (RuntimeException e) {
+            log.warn("Could not count the deposits; the deposit statistics only reflect changes from now on: {}", e.getMessage());
+        }
+
+        Path journal = config.getJournal();
+        Files.createDirectories(journal.toAbsolutePath().getParent());
+        List<FileEvent> journaled = readJournal(journal);
+        synchronized (journalLock) {
+            journalWriter = Files.newBufferedWriter(journal, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            pending = journaled.size();
+            replaying = !journaled.isEmpty();
+        }
+
+        running = true;
+        worker = new Thread(this::work, "deposit-event-queue");
+        worker.start();
+
+        if (!journaled.isEmpty()) {
+            log.info("Replaying {} deposit event(s) from journal '{}'", journaled.size(), journal);
+            for (FileEvent event : journaled) {
+                queue.put(event);
+            }
+            synchronized (journalLock) {
+                replaying = false;
+            }
+        }
+    }
+
+    /**
+     * Reads the events from the journal, and rewrites it without the lines that could not be read, so that new events are not appended to a torn line.
+     */
+    private static List<FileEvent> readJournal(Path journal) throws IOException {
+        if (!Files.exists(journal))
+            return List.of();
+
+        // Decoded leniently: a torn line may end in the middle of a character
+        List<String> lines = new String(Files.readAllBytes(journal), StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        List<FileEvent> events = new ArrayList<>();
+        List<String> valid = new ArrayList<>();
+        // The position in events of the held deletes that have not been released yet
+        Map<File, Integer> held = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String[] fields = lines.get(i).split("\t", 2);
+            File file = fields.length == 2 ? new File(fields[1]) : null;
+            if (file != null && file.isAbsolute() && hold.equals(fields[0])) {
+                held.put(file, events.size());
+                events.add(new FileEvent(FileEventType.DELETE, file));
+                valid.add(lines.get(i));
+                continue;
+            }
+            if (file != null && file.isAbsolute() && release.equals(fields[0])) {
+                Integer position = held.remove(file);
+                if (position != null)
+                    events.set(position, null);
+                valid.add(lines.get(i));
+                continue;
+            }
+            Optional<FileEvent> event = parse(lines.get(i));
+            if (event.isPresent()) {
+                events.add(event.get());
+                valid.add(lines.get(i));
+            }
+            else {
+                log.warn("Skipping malformed line {} of journal '{}': '{}'", i + 1, journal, lines.get(i));
+            }
+        }
+        for (Integer position : held.values()) {
+            File file = events.get(position).file;
+            if (file.exists()) {
+                log.info("Deposit '{}' is present again; dropping its held delete", file.getParentFile());
+                events.set(position, null);
+            }
+            else {
+                log.info("Replaying held delete of '{}'", file.getParentFile());
+            }
+        }
+        events.removeIf(Objects::isNull);
+        if (valid.size() < lines.size()) {
+            Path rewritten = journal.resolveSibling(journal.getFileName() + ".tmp");
+            Files.write(rewritten, valid, StandardCharsets.UTF_8);
+            Files.move(rewritten, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return events;
+    }
+
+    private static Optional<FileEvent> parse(String line) {
+        String[] fields = line.split("\t", 2);
+        if (fields.length < 2 || !new File(fields[1]).isAbsolute())
+            return Optional.empty();
+        try {
+            return Optional.of(new FileEvent(FileEventType.valueOf(fields[0]), new File(fields[1])));
+        }
+        catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        synchronized (journalLock) {
+            if (journalWriter != null) {
+                journalWriter.close();
+            }
+        }
+        log.info("Stopped deposit event queue with a backlog of {} event(s)", getBacklog());
+    }
+
+    public void enqueue(FileEventType type, File file) {
+        try {
+            synchronized (journalLock) {
+                writeJournal(type.name(), file);
+                pending++;
+            }
+            // Offered with a timeout instead of put, so that a monitor thread does not wait forever on a full queue once the worker has stopped; the event is then replayed
+            // from the journal at the next start
+            FileEvent event = new FileEvent(type, file);
+            while (!queue.offer(event, 1, TimeUnit.SECONDS)) {
+                if (!running) {
+                    log.warn("Deposit event queue has stopped; {} event for '{}' is left in the journal", type, file);
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // The event will never be applied; were it still counted, the journal would not be truncated again
+            synchronized (journalLock) {
+                pending--;
+            }
+            log.warn("Interrupted while queueing {} event for '{}'", type, file);
+        }
+    }
+
+    /**
+     * Journals a delete that is held back. Until it is released, the journal is not truncated.
+     */
+    public void hold(File file) {
+        synchronized (journalLock) {
+            writeJournal(hold, file);
+            pending++;
+        }
+    }
+
+    /**
+     * Releases a held delete, after the event that replaces it has been queued.
+     */
+    public void release(File file) {
+        synchronized (journalLock) {
+            writeJournal(release, file);
+        }
+        applied();
+    }
+
+    // Called with journalLock held
+    private void writeJournal(String type, File file) {
+        try {
+            journalWriter.write(type + "\t" + file.getAbsolutePath());
+            journalWriter.newLine();
+            journalWriter.flush();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getBacklog() {
+        return queue.size() + (current != null ? 1 : 0);
+    }
+
+    /**
+     * The moment at which the oldest event that has not been applied yet was observed; the queue is in order, so that is the current event or the head of the queue.
+     */
+    public Optional<Instant> getOldestPending() {
+        FileEvent event = current;
+        if (event == null)
+            event = queue.peek();
+        return Optional.ofNullable(event).map(e -> e.observed);
+    }
+
+    public CircuitState getCircuitState() {
+        return circuitState;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    private void work() {
+        try {
+            while (running) {
+                FileEvent event = queue.poll(1, TimeUnit.SECONDS);
+                if (event == null)
+                    continue;
+
+                current = event;
+                if (!process(event))
+                    break;
+                current = null;
+                applied();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns false if the worker has been stopped before the event could be applied; the event then stays in the journal.
+     */
+    private boolean process(FileEvent event) throws InterruptedException {
+        while (running) {
+            if (circuitState == CircuitState.OPEN) {
+                Thread.sleep(config.getOpenDuration().toMilliseconds());
+                circuitState = CircuitState.HALF_OPEN;
+            }
+            try {
+                Instant modified = modified(event);
+                Optional<DepositEvent> applied = dispatch(event);
+                applied.ifPresent(this::applied);
+                // The unit of work has been committed. A moved deposit keeps the modification time of its deposit.properties, which says nothing about when it was moved, so
+                // its lag counts from the moment the move was observed.
+                boolean moved = event.type == FileEventType.MOVE || applied.map(e -> e.getType() == DepositEvent.Type.MOVED).orElse(false);
+                depositLag.record(event.file.getAbsoluteFile().getParentFile().getParent(), moved ? event.observed : modified, Instant.now());
+                if (circuitState != CircuitState.CLOSED) {
+                    log.info("Database is available again; closing circuit");
+                }
+                circuitState = CircuitState.CLOSED;
+                consecutiveFailures = 0;
+                return true;
+            }
+            catch (RuntimeException e) {
+                if (isDatabaseFailure(e)) {
+                    consecutiveFailures++;
+                    if (circuitState == CircuitState.HALF_OPEN || consecutiveFailures >= config.getFailureThreshold()) {
+                        log.warn("Database failure #{} for {} event of '{}'; opening circuit for {}", consecutiveFailures, event.type, event.file, config.getOpenDuration(), e);
+                        circuitState = CircuitState.OPEN;
+                    }
+                    else {
+                        log.warn("Database failure #{} for {} event of '{}'; retrying", consecutiveFailures, event.type, event.file, e);
+                        Thread.sleep(backoff());
+                    }
+                }
+                else if (++event.attempts >= config.getMaxAttempts()) {
+                    log.error("Giving up on {} event of '{}' after {} attempt(s)", event.type, event.file, event.attempts, e);
+                    return true;
+                }
+                else {
+                    log.warn("Failed to process {} event of '{}'; retrying", event.type, event.file, e);
+                    Thread.sleep(config.getInitialBackoff().toMilliseconds());
+                }
+            }
+        }
+        return false;
+    }
+
+    private Optional<DepositEvent> dispatch(FileEvent event) {
+        switch (event.type) {
+            case CREATE:
+                return depositStatusUpdater.onCreateDeposit(event.file);
+            case CHANGE:
+                return depositStatusUpdater.onChangeDeposit(event.file);
+            case MOVE:
+                return depositStatusUpdater.onMoveDeposit(event.file);
+            case DELETE:
+                return depositStatusUpdater.onDeleteDeposit(event.file);
+            default:
+                throw new IllegalArgumentException("Unknown event type: " + event.type);
+        }
+    }
+
+    private void applied(DepositEvent event) {
+        depositEventBuffer.publish(event);
+        if (event.isStorageSizePending()) {
+            // The record has been committed with a pending storage size
+            storageSizeWorker.submit(event.getDepositId(), Path.of(event.getLocation(), event.getDepositId()), event.getTimestamp());
+        }
+    }
+
+    // A deleted file has no modification time; its deletion was noticed when the event was observed
+    private static Instant modified(FileEvent event) {
+        long lastModified = event.type != FileEventType.DELETE ? event.file.lastModified() : 0;
+        return lastModified > 0 ? Instant.ofEpochMilli(lastModified) : event.observed;
+    }
+
+    private long backoff() {
+        long initial = config.getInitialBackoff().toMilliseconds();
+        int shift = Math.min(consecutiveFailures - 1, 30);
+        return Math.min(initial << shift, config.getMaxBackoff().toMilliseconds());
+    }
+
+    private void applied() {
+        synchronized (journalLock) {
+            pending--;
+            if (pending == 0 && !replaying) {
+                try {
+                    // Everything in the journal has been applied
+                    journalWriter.close();
+                    journalWriter = Files.newBufferedWriter(config.getJournal(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                }
+                catch (IOException e) {
+                    log.error("Could not truncate journal '{}'", config.getJournal(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the failure is caused by the database being unavailable or overloaded, as opposed to a problem with the event itself, which would fail forever.
+     */
+    private static boolean isDatabaseFailure(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof JDBCConnectionException || t instanceof SQLTransientException || t instanceof SQLRecoverableException)
+                return true;
+            if (t instanceof SQLException) {
+                String sqlState = ((SQLException) t).getSQLState();
+                // connection exception, transaction rollback, insufficient resources, operator intervention
+                if (sqlState != null && sqlState.length() >= 2 && transientSqlStateClasses.contains(sqlState.substring(0, 2)))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.hibernate.UnitOfWork;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes imported deposit records in batches, each in its own transaction, so that a failing batch does not roll back the batches before it. Records that already exist are
+ * overwritten.
+ */
+public class DepositImporter {
+    private final DepositPropertiesDAO depositPropertiesDAO;
+    private final DepositIndex depositIndex;
+    private final DepositStatistics depositStatistics;
+    private final boolean postgreSQL;
+
+    public DepositImporter(DepositPropertiesDAO depositPropertiesDAO, DepositIndex depositIndex, DepositStatistics depositStatistics, boolean postgreSQL) {
+        this.depositPropertiesDAO = depositPropertiesDAO;
+        this.depositIndex = depositIndex;
+        this.depositStatistics = depositStatistics;
+        this.postgreSQL = postgreSQL;
+    }
+
+    @UnitOfWork
+    public int importBatch(List<DepositProperties> batch) {
+        // The merge statements cannot handle the same deposit twice in one batch; the last occurrence wins
+        Map<String, DepositProperties> records = new LinkedHashMap<>();
+        batch.forEach(dp -> records.put(dp.getDepositId(), dp));
+        Collection<DepositProperties> unique = records.values();
+
+        if (postgreSQL)
+            depositPropertiesDAO.copyImport(unique);
+        else
+            depositPropertiesDAO.batchImport(unique);
+        depositPropertiesDAO.afterCommit(() -> unique.forEach(depositIndex::put));
+        return batch.size();
+    }
+
+    /**
+     * The import does not know which records it has overwritten, so the statistics are counted anew once it is done.
+     */
+    @UnitOfWork(readOnly = true)
+    public void refreshStatistics() {
+        depositStatistics.seed(depositPropertiesDAO.countByLocationStateDeleted());
+    }
+}
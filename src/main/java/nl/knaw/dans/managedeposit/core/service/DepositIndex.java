@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory, read-through index of the deposits known in the database. It is warmed at startup and kept in sync by the writes of the {@link DepositStatusUpdater}, so that most monitor
+ * events can be decided without a database round trip. The index is bounded by <code>maxEntries</code>; once that is exceeded it is no longer complete and a miss must be confirmed against
+ * the database.
+ */
+public class DepositIndex {
+    private static final Logger log = LoggerFactory.getLogger(DepositIndex.class);
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private volatile boolean complete;
+    private volatile boolean overflowed;
+
+    public DepositIndex(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public static class Entry {
+        private final String location;
+        private final String depositState;
+        private final boolean deleted;
+        private final long storageInBytes;
+        private final long updated;
+        // The properties that are read from deposit.properties, kept to detect changes that do not need to be written to the database
+        private final String depositor;
+        private final String bagName;
+        private final String description;
+        private final OffsetDateTime depositCreationTimestamp;
+
+        Entry(String location, String depositState, boolean deleted, long storageInBytes, long updated, String depositor, String bagName, String description,
+            OffsetDateTime depositCreationTimestamp) {
+            // The number of distinct locations, states and depositors is small; share the instances between entries
+            this.location = location != null ? location.intern() : null;
+            this.depositState = depositState != null ? depositState.intern() : null;
+            this.deleted = deleted;
+            this.storageInBytes = storageInBytes;
+            this.updated = updated;
+            this.depositor = depositor != null ? depositor.intern() : null;
+            this.bagName = bagName;
+            this.description = description;
+            this.depositCreationTimestamp = depositCreationTimestamp;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public String getDepositState() {
+            return depositState;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public long getStorageInBytes() {
+            return storageInBytes;
+        }
+
+        /**
+         * The update timestamp of the record, in milliseconds since the epoch.
+         */
+        public long getUpdated() {
+            return updated;
+        }
+
+        /**
+         * Whether the properties that are read from deposit.properties are the same as those of the entry. The storage size is left out, as it is filled in asynchronously.
+         */
+        public boolean hasSameProperties(DepositProperties dp) {
+            return Objects.equals(depositState, dp.getDepositState())
+                && Objects.equals(depositor, dp.getDepositor())
+                && Objects.equals(bagName, dp.getBagName())
+                && Objects.equals(description, dp.getDescription())
+                && Objects.equals(depositCreationTimestamp, dp.getDepositCreationTimestamp());
+        }
+
+        /**
+         * A deposit that appears in a new location is no longer deleted.
+         */
+        public Entry withLocation(String location) {
+            return new Entry(location, depositState, false, storageInBytes, updated, depositor, bagName, description, depositCreationTimestamp);
+        }
+
+        public Entry withDeleted(boolean deleted) {
+            return new Entry(location, depositState, deleted, storageInBytes, updated, depositor, bagName, description, depositCreationTimestamp);
+        }
+
+        public Entry withStorageInBytes(long storageInBytes) {
+            return new Entry(location, depositState, deleted, storageInBytes, updated, depositor, bagName, description, depositCreationTimestamp);
+        }
+    }
+
+    /**
+     * A miss in a complete index means that the deposit is not present in the database.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void markComplete() {
+        complete = !overflowed;
+        log.info("Deposit index loaded with {} entries (complete: {})", entries.size(), complete);
+    }
+
+    /**
+     * An index with <code>maxEntries</code> 0 keeps nothing; every lookup goes to the database.
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Optional<Entry> get(String depositId) {
+        return Optional.ofNullable(entries.get(depositId));
+    }
+
+    public void put(DepositProperties dp) {
+        if (!isEnabled())
+            return;
+        Entry entry = entryOf(dp);
+        if (entries.containsKey(dp.getDepositId()) || entries.size() < maxEntries) {
+            entries.put(dp.getDepositId(), entry);
+        }
+        else if (!overflowed) {
+            overflowed = true;
+            complete = false;
+            log.warn("Deposit index is full ({} entries); lookups of unknown deposits will go to the database", maxEntries);
+        }
+    }
+
+    public void updateLocation(String depositId, String location) {
+        entries.computeIfPresent(depositId, (id, e) -> e.withLocation(location));
+    }
+
+    public void updateDeleted(String depositId, boolean deleted) {
+        entries.computeIfPresent(depositId, (id, e) -> e.withDeleted(deleted));
+    }
+
+    public void updateStorageInBytes(String depositId, long storageInBytes) {
+        entries.computeIfPresent(depositId, (id, e) -> e.withStorageInBytes(storageInBytes));
+    }
+
+    public void remove(String depositId) {
+        entries.remove(depositId);
+    }
+
+    /**
+     * Drops all entries before the index is loaded. Lookups go to the database until it has been loaded again.
+     */
+    public void invalidate() {
+        complete = false;
+        overflowed = false;
+        entries.clear();
+    }
+
+    public static Entry entryOf(DepositProperties dp) {
+        long updated = dp.getDepositUpdateTimestamp() != null ? dp.getDepositUpdateTimestamp().toInstant().toEpochMilli() : 0;
+        return new Entry(dp.getLocation(), dp.getDepositState(), dp.isDeleted(), dp.getStorageInBytes(), updated, dp.getDepositor(), dp.getBagName(), dp.getDescription(),
+            dp.getDepositCreationTimestamp());
+    }
+}
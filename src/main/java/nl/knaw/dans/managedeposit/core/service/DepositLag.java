@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
+import com.codahale.metrics.Snapshot;
+import nl.knaw.dans.managedeposit.config.LagConfig;
+import nl.knaw.dans.managedeposit.core.DepositLagReport;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Tracks how far the database lags behind the deposit boxes: for every event applied by the {@link DepositEventQueue}, the time from the last modification of the
+ * <code>deposit.properties</code> file to the commit of the change, in a histogram per deposit box over a sliding window; and the age of the oldest event that is still waiting.
+ * The histograms are published as <code>DepositLag.&lt;box&gt;.lag</code>, in milliseconds.
+ */
+public class DepositLag {
+    private final MetricRegistry metricRegistry;
+    private final LagConfig config;
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private volatile Supplier<Optional<Instant>> oldestPending = Optional::empty;
+
+    public DepositLag(MetricRegistry metricRegistry, LagConfig config) {
+        this.metricRegistry = metricRegistry;
+        this.config = config;
+        metricRegistry.register(MetricRegistry.name(DepositLag.class, "oldestPendingAge"), (Gauge<Long>) this::getOldestPendingAge);
+    }
+
+    /**
+     * Sets the source of the moment at which the oldest waiting event was observed.
+     */
+    void watchBacklog(Supplier<Optional<Instant>> oldestPending) {
+        this.oldestPending = oldestPending;
+    }
+
+    void record(String depositBox, Instant modified, Instant committed) {
+        histogramOf(depositBox).update(Math.max(0, Duration.between(modified, committed).toMillis()));
+    }
+
+    public long getOldestPendingAge() {
+        return oldestPending.get()
+            .map(observed -> Math.max(0, Duration.between(observed, Instant.now()).toMillis()))
+            .orElse(0L);
+    }
+
+    public long getThreshold() {
+        return config.getThreshold().toMilliseconds();
+    }
+
+    /**
+     * Whether the 95th percentile of a box, or the age of the oldest waiting event, exceeds the threshold.
+     */
+    public boolean isExceeded(DepositLagReport report) {
+        return report.getOldestPendingAge() > report.getThreshold()
+            || report.getBoxes().values().stream().anyMatch(box -> box.getP95() > report.getThreshold());
+    }
+
+    public DepositLagReport report() {
+        Map<String, DepositLagReport.BoxLag> boxes = new TreeMap<>();
+        histograms.forEach((box, histogram) -> {
+            Snapshot snapshot = histogram.getSnapshot();
+            boxes.put(box, new DepositLagReport.BoxLag(snapshot.size(), (long) snapshot.getMedian(), (long) snapshot.get95thPercentile(), (long) snapshot.get99thPercentile(),
+                snapshot.getMax()));
+        });
+        return new DepositLagReport(getOldestPendingAge(), getThreshold(), boxes);
+    }
+
+    private Histogram histogramOf(String depositBox) {
+        return histograms.computeIfAbsent(depositBox, box -> metricRegistry.histogram(MetricRegistry.name(DepositLag.class, MetricNames.tag(box), "lag"),
+            () -> new Histogram(new SlidingTimeWindowArrayReservoir(config.getWindow().toMilliseconds(), TimeUnit.MILLISECONDS))));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs the delete and create events of a deposit that is moved between deposit boxes. Each box is polled by its own monitor, so the delete from the old box may be seen before the
+ * create in the new one. Deletes are therefore held back for <code>moveWindow</code>; a create of the same deposit in another box within that window is queued as a single move,
+ * and a create in the same box as a change. Creates that arrive before the delete are recognized as moves by the {@link DepositStatusUpdater} itself.
+ *
+ * A delete that is held back is journaled by the {@link DepositEventQueue} right away and released once it has been paired or queued, so that it is not lost if the service
+ * crashes within the window.
+ */
+public class DepositMoveCorrelator implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(DepositMoveCorrelator.class);
+
+    private final DepositEventQueue depositEventQueue;
+    private final Duration moveWindow;
+    private final Map<String, PendingDelete> pendingDeletes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "deposit-move-correlator"));
+
+    private static class PendingDelete {
+        private final File file;
+        private ScheduledFuture<?> future;
+
+        PendingDelete(File file) {
+            this.file = file;
+        }
+    }
+
+    public DepositMoveCorrelator(DepositEventQueue depositEventQueue, Duration moveWindow) {
+        this.depositEventQueue = depositEventQueue;
+        this.moveWindow = moveWindow;
+    }
+
+    public void onCreate(File depositPropertiesFile) {
+        String depositId = depositPropertiesFile.getParentFile().getName();
+        PendingDelete pendingDelete = pendingDeletes.remove(depositId);
+
+        if (pendingDelete != null && cancel(pendingDelete)) {
+            if (boxOf(pendingDelete.file).equals(boxOf(depositPropertiesFile))) {
+                // Deleted and created again in the same box, for instance because it was replaced by a copy: the record is not moved, but may have changed
+                log.debug("Deposit '{}' has been replaced in '{}'", depositId, boxOf(depositPropertiesFile));
+                depositEventQueue.enqueue(DepositEventQueue.FileEventType.CHANGE, depositPropertiesFile);
+            }
+            else {
+                log.debug("Deposit '{}' has been moved from '{}' to '{}'", depositId, boxOf(pendingDelete.file), boxOf(depositPropertiesFile));
+                depositEventQueue.enqueue(DepositEventQueue.FileEventType.MOVE, depositPropertiesFile);
+            }
+            depositEventQueue.release(pendingDelete.file);
+        }
+        else {
+            depositEventQueue.enqueue(DepositEventQueue.FileEventType.CREATE, depositPropertiesFile);
+        }
+    }
+
+    public void onChange(File depositPropertiesFile) {
+        depositEventQueue.enqueue(DepositEventQueue.FileEventType.CHANGE, depositPropertiesFile);
+    }
+
+    public void onDelete(File depositPropertiesFile) {
+        String depositId = depositPropertiesFile.getParentFile().getName();
+        PendingDelete pendingDelete = new PendingDelete(depositPropertiesFile);
+        depositEventQueue.hold(depositPropertiesFile);
+
+        synchronized (pendingDelete) {
+            PendingDelete previous = pendingDeletes.put(depositId, pendingDelete);
+            if (previous != null && cancel(previous)) {
+                queueDelete(previous);
+            }
+            pendingDelete.future = scheduler.schedule(() -> expire(depositId, pendingDelete), moveWindow.toMilliseconds(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Path boxOf(File depositPropertiesFile) {
+        return depositPropertiesFile.getAbsoluteFile().getParentFile().getParentFile().toPath().normalize();
+    }
+
+    private boolean cancel(PendingDelete pendingDelete) {
+        // Wait until onDelete has finished registering the delete
+        synchronized (pendingDelete) {
+            return pendingDelete.future.cancel(false);
+        }
+    }
+
+    private void expire(String depositId, PendingDelete pendingDelete) {
+        synchronized (pendingDelete) {
+            if (pendingDeletes.remove(depositId, pendingDelete)) {
+                queueDelete(pendingDelete);
+            }
+        }
+    }
+
+    private void queueDelete(PendingDelete pendingDelete) {
+        depositEventQueue.enqueue(DepositEventQueue.FileEventType.DELETE, pendingDelete.file);
+        depositEventQueue.release(pendingDelete.file);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+        // Hand the deletes that are held back to the queue; should that fail, they are replayed from the journal
+        scheduler.shutdownNow();
+        pendingDeletes.forEach((depositId, pendingDelete) -> queueDelete(pendingDelete));
+        pendingDeletes.clear();
+    }
+}
@@ -26,14 +26,23 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.OffsetDateTime;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class DepositPropertiesAssembler {
     private static final Logger log = LoggerFactory.getLogger(DepositPropertiesAssembler.class);
 
-    DepositPropertiesAssembler() {
+    private final IoBudget ioBudget;
+
+    DepositPropertiesAssembler(IoBudget ioBudget) {
+        this.ioBudget = ioBudget;
     }
 
+    /**
+     * The storage size is not computed here, but filled in later by the {@link StorageSizeWorker}, so that the deposit is registered without waiting for its tree to be walked.
+     */
     Optional<DepositProperties> assembleObject(File depositPropertiesFile, boolean  updateModificationDateTime) {
 
         Path depositPath = depositPropertiesFile.getParentFile().toPath();
@@ -41,6 +50,7 @@ class DepositPropertiesAssembler {
         DepositProperties dp; // = null
         Configuration configuration;
         try {
+            ioBudget.acquire(IoBudget.Priority.HIGH, 1);
             configuration = DepositPropertiesFileReader.readDepositProperties(depositPropertiesFile);
 
             dp = new DepositProperties(depositPath.getFileName().toString(),
@@ -50,7 +60,7 @@ class DepositPropertiesAssembler {
                 TextTruncation.stripEnd(configuration.getString("state.description", ""), TextTruncation.maxDescriptionLength),
                 OffsetDateTime.parse(configuration.getString("creation.timestamp", OffsetDateTime.now().toString())),
                 TextTruncation.stripBegin(depositPropertiesFile.getParentFile().getParentFile().getAbsolutePath(), TextTruncation.maxDirectoryLength),
-                calculateFolderSize(depositPath));
+                DepositProperties.storageSizePending);
 
             if (updateModificationDateTime) {
                 dp.setDepositUpdateTimestamp(OffsetDateTime.now());
@@ -67,19 +77,43 @@ class DepositPropertiesAssembler {
         return Optional.of(dp);
     }
 
-    private long calculateFolderSize(Path path) {
-        long size;
-        try (var pathStream = Files.walk(path)) {
-            size = pathStream
-                .filter(p -> p.toFile().isFile())
-                .mapToLong(p -> p.toFile().length())
-                .sum();
+    /**
+     * Whether the contents of the deposit may have changed after <code>since</code> (in milliseconds since the epoch), judged by the modification times of the entries of the
+     * deposit directory and of its bag directories, rather than by walking the whole tree. A change to the payload of a bag rewrites its manifests, so it is noticed as well.
+     * deposit.properties itself is not taken into account. When in doubt, the contents are assumed to have changed.
+     */
+    boolean contentsModifiedSince(File depositPropertiesFile, long since) {
+        try {
+            for (Path entry : list(depositPropertiesFile.getParentFile().toPath())) {
+                if (entry.getFileName().toString().equalsIgnoreCase(depositPropertiesFile.getName()))
+                    continue;
+                if (isModifiedSince(entry, since))
+                    return true;
+                if (Files.isDirectory(entry)) {
+                    for (Path bagEntry : list(entry)) {
+                        if (isModifiedSince(bagEntry, since))
+                            return true;
+                    }
+                }
+            }
+            return false;
         }
         catch (IOException e) {
-            throw new RuntimeException(e);
+            log.debug("Cannot tell whether the contents of '{}' have changed: {}", depositPropertiesFile.getParent(), e.getMessage());
+            return true;
         }
+    }
+
+    private List<Path> list(Path directory) throws IOException {
+        ioBudget.acquire(IoBudget.Priority.HIGH, 1);
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.collect(Collectors.toList());
+        }
+    }
 
-        return size;
+    private boolean isModifiedSince(Path path, long since) throws IOException {
+        ioBudget.acquire(IoBudget.Priority.HIGH, 1);
+        return Files.getLastModifiedTime(path).toMillis() > since;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number of deposits and their total storage size per deposit box (location), state and deleted flag, kept up to date with every write of the {@link DepositStatusUpdater}, so that
+ * monitoring can read them as gauges without querying the database. The counters are seeded with a single GROUP BY query, and seeded again after bulk changes of which the
+ * individual deposits are not known. Deposits of which the size is still pending count as 0 bytes.
+ */
+public class DepositStatistics {
+    private static final Logger log = LoggerFactory.getLogger(DepositStatistics.class);
+
+    private final ConcurrentHashMap<Key, Counters> counters = new ConcurrentHashMap<>();
+    private final MetricRegistry metricRegistry;
+
+    public DepositStatistics(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    private static class Key {
+        private final String location;
+        private final String depositState;
+        private final boolean deleted;
+
+        Key(String location, String depositState, boolean deleted) {
+            this.location = location;
+            this.depositState = depositState;
+            this.deleted = deleted;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            Key key = (Key) o;
+            return deleted == key.deleted && Objects.equals(location, key.location) && Objects.equals(depositState, key.depositState);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(location, depositState, deleted);
+        }
+    }
+
+    private static class Counters {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+    }
+
+    /**
+     * Replaces all counters by the rows of a GROUP BY on location, depositState and deleted, with the count and the sum of the known storage sizes as the last two columns.
+     */
+    public void seed(List<Object[]> rows) {
+        Set<Key> seen = new HashSet<>();
+        for (Object[] row : rows) {
+            Key key = new Key((String) row[0], (String) row[1], (Boolean) row[2]);
+            Counters c = countersOf(key);
+            c.count.reset();
+            c.count.add(((Number) row[3]).longValue());
+            c.bytes.reset();
+            c.bytes.add(row[4] == null ? 0 : ((Number) row[4]).longValue());
+            seen.add(key);
+        }
+        // Combinations that no longer occur keep their gauges, at zero
+        counters.forEach((key, c) -> {
+            if (!seen.contains(key)) {
+                c.count.reset();
+                c.bytes.reset();
+            }
+        });
+        log.debug("Deposit statistics seeded with {} combination(s) of location, state and deleted", rows.size());
+    }
+
+    /**
+     * Moves a deposit from the counters of its state before a write to those of its state after it; an empty state means that the deposit was not, or is no longer, registered.
+     */
+    public void update(Optional<DepositIndex.Entry> before, Optional<DepositIndex.Entry> after) {
+        before.ifPresent(entry -> add(entry, -1));
+        after.ifPresent(entry -> add(entry, 1));
+    }
+
+    private void add(DepositIndex.Entry entry, int sign) {
+        Counters c = countersOf(new Key(entry.getLocation(), entry.getDepositState(), entry.isDeleted()));
+        c.count.add(sign);
+        c.bytes.add(sign * Math.max(0, entry.getStorageInBytes()));
+    }
+
+    private Counters countersOf(Key key) {
+        return counters.computeIfAbsent(key, k -> {
+            Counters c = new Counters();
+            String location = MetricNames.tag(k.location);
+            String state = MetricNames.tag(k.depositState);
+            String deleted = k.deleted ? "deleted" : "present";
+            metricRegistry.register(MetricRegistry.name(DepositStatistics.class, location, state, deleted, "count"), (Gauge<Long>) c.count::sum);
+            metricRegistry.register(MetricRegistry.name(DepositStatistics.class, location, state, deleted, "bytes"), (Gauge<Long>) c.bytes::sum);
+            return c;
+        });
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recounts the {@link DepositStatistics} periodically, for when other instances write to the same database.
+ */
+public class DepositStatisticsRefresher implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(DepositStatisticsRefresher.class);
+
+    private final DepositStatusUpdater depositStatusUpdater;
+    private final Duration interval;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "deposit-statistics-refresher"));
+
+    public DepositStatisticsRefresher(DepositStatusUpdater depositStatusUpdater, Duration interval) {
+        this.depositStatusUpdater = depositStatusUpdater;
+        this.interval = interval;
+    }
+
+    @Override
+    public void start() {
+        long millis = interval.toMilliseconds();
+        scheduler.scheduleWithFixedDelay(this::refresh, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private void refresh() {
+        try {
+            depositStatusUpdater.loadDepositStatistics();
+        }
+        catch (RuntimeException e) {
+            log.warn("Recounting the deposit statistics failed: {}", e.getMessage());
+        }
+    }
+}
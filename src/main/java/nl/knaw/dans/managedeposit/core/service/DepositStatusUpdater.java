@@ -16,69 +16,197 @@
 package nl.knaw.dans.managedeposit.core.service;
 
 import io.dropwizard.hibernate.UnitOfWork;
+import nl.knaw.dans.managedeposit.core.DepositEvent;
 import nl.knaw.dans.managedeposit.core.DepositProperties;
 import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 public class DepositStatusUpdater {
-    private static final Logger log = LoggerFactory.getLogger(DepositPropertiesAssembler.class);
+    private static final Logger log = LoggerFactory.getLogger(DepositStatusUpdater.class);
     private final DepositPropertiesDAO depositPropertiesDAO;
     private final DepositPropertiesAssembler depositPropertiesAssembler;
+    private final DepositIndex depositIndex;
+    private final DepositStatistics depositStatistics;
 
-    public DepositStatusUpdater(DepositPropertiesDAO depositPropertiesDAO) {
+    public DepositStatusUpdater(DepositPropertiesDAO depositPropertiesDAO, DepositIndex depositIndex, DepositStatistics depositStatistics, IoBudget ioBudget) {
         this.depositPropertiesDAO = depositPropertiesDAO;
-        this.depositPropertiesAssembler = new DepositPropertiesAssembler();
+        this.depositPropertiesAssembler = new DepositPropertiesAssembler(ioBudget);
+        this.depositIndex = depositIndex;
+        this.depositStatistics = depositStatistics;
     }
 
+    @UnitOfWork(readOnly = true)
+    public void loadDepositStatistics() {
+        depositStatistics.seed(depositPropertiesDAO.countByLocationStateDeleted());
+    }
+
+    @UnitOfWork(readOnly = true)
+    public void loadDepositIndex() {
+        depositIndex.invalidate();
+        if (!depositIndex.isEnabled())
+            return;
+        depositPropertiesDAO.forEach(depositIndex::put);
+        depositIndex.markComplete();
+    }
+
+    /**
+     * The returned event is not yet published; the caller publishes it after the unit of work has been committed.
+     */
     @UnitOfWork
-    public void onCreateDeposit(File depositPropertiesFile) {
-        Optional<DepositProperties> dp = depositPropertiesDAO.findById(depositPropertiesFile.getParentFile().getName());
-
-        if (dp.isPresent()) {
-            // The 'move deposit' action is processed in two steps: 1. `create` deposit in the new location; 2. `delete` it from the old location.
-            // Update the location column.
-            Path depositLocationFolder = Path.of(depositPropertiesFile.getParentFile().getParentFile().getAbsolutePath());
-            Optional<Integer> updatedNumber = depositPropertiesDAO.updateDepositLocation(dp.get().getDepositId(), depositLocationFolder);
-            if (updatedNumber.isPresent())
-                log.debug("onCreateDeposit - `location` of deposit '{}' has been updated to '{}' ", dp.get().getDepositId(), depositLocationFolder);
-        }
-        else {
-            Optional<DepositProperties> dpObject = depositPropertiesAssembler.assembleObject(depositPropertiesFile, false);
-            dpObject.ifPresent(depositPropertiesDAO::save);
-            log.debug("onCreateDeposit: A new deposit has been registered `{}`", depositPropertiesFile.getParentFile().getAbsolutePath());
-        }
+    public Optional<DepositEvent> onCreateDeposit(File depositPropertiesFile) {
+        return registerOrRelocate(depositPropertiesFile);
     }
 
+    /**
+     * A deposit that has been deleted from one deposit box and created in another, as paired by the {@link DepositMoveCorrelator}. This is handled like a create: a deposit that is
+     * known in the index or the database only has its location updated, without reading deposit.properties again; one that is not known there (e.g. removed from the database in the
+     * meantime) is read and registered anew.
+     */
     @UnitOfWork
-    public void onChangeDeposit(File depositPropertiesFile) {
+    public Optional<DepositEvent> onMoveDeposit(File depositPropertiesFile) {
+        return registerOrRelocate(depositPropertiesFile);
+    }
+
+    @UnitOfWork
+    public Optional<DepositEvent> onChangeDeposit(File depositPropertiesFile) {
         Optional<DepositProperties> dpObject = depositPropertiesAssembler.assembleObject(depositPropertiesFile, true);
-        dpObject.ifPresent(depositPropertiesDAO::save);
+        if (dpObject.isEmpty())
+            return Optional.empty();
+
+        DepositProperties dp = dpObject.get();
+        Optional<DepositIndex.Entry> indexEntry = lookup(dp.getDepositId());
+        if (indexEntry.isPresent() && isUnchanged(indexEntry.get(), dp)) {
+            log.debug("onChangeDeposit: deposit.properties has been touched but its content is unchanged `{}`", depositPropertiesFile.getParentFile().getAbsolutePath());
+            return Optional.empty();
+        }
+
+        // Most changes of deposit.properties are state transitions; the size that has already been computed is kept unless the deposit's contents have changed as well
+        if (indexEntry.isPresent() && indexEntry.get().getStorageInBytes() >= 0
+            && !depositPropertiesAssembler.contentsModifiedSince(depositPropertiesFile, indexEntry.get().getUpdated())) {
+            dp.setStorageInBytes(indexEntry.get().getStorageInBytes());
+        }
+
+        save(indexEntry, dp);
         log.debug("onChangeDeposit: deposit.properties has been changed `{}`", depositPropertiesFile.getParentFile().getAbsolutePath());
+        return Optional.of(toEvent(DepositEvent.Type.CHANGED, dp));
     }
 
     @UnitOfWork
-    public void onDeleteDeposit(File depositPropertiesFile) {
+    public Optional<DepositEvent> onDeleteDeposit(File depositPropertiesFile) {
         // At this stage, the deposit.properties file's handle is present but the content is null (impossible to read data of the file)
-        Optional<DepositProperties> dp = depositPropertiesDAO.findById(depositPropertiesFile.getParentFile().getName());
-
-        try {
-            // The 'move deposit' action is processed in two steps: 1. `create` deposit in the new location; 2. `delete` it from the old location. Ignore delete step
-            if (dp.isPresent() && Files.isSameFile(Path.of(dp.get().getLocation()), Path.of(depositPropertiesFile.getParentFile().getParentFile().getAbsolutePath()))) {
-                String depositId = depositPropertiesFile.getParentFile().getName();
-                Optional<Integer> deletedNumber = depositPropertiesDAO.updateDeleteFlag(depositId, true);
-                log.debug("onDeleteDeposit - 'deleted' mark has been set to '{}' for deposit.properties from '{}' ", deletedNumber.isPresent(), depositId);
-            }
+        String depositId = depositPropertiesFile.getParentFile().getName();
+        Path depositLocationFolder = Path.of(depositPropertiesFile.getParentFile().getParentFile().getAbsolutePath());
+        Optional<DepositIndex.Entry> indexEntry = lookup(depositId);
+
+        // If the deposit has already been registered in another location, this is the second step of a move: ignore it
+        if (indexEntry.isEmpty() || !isAt(indexEntry.get(), depositLocationFolder)) {
+            log.debug("onDeleteDeposit - deposit '{}' is not registered in '{}'; ignoring delete", depositId, depositLocationFolder);
+            return Optional.empty();
+        }
+
+        Optional<Integer> deletedNumber = depositPropertiesDAO.updateDeleteFlag(depositId, true);
+        depositPropertiesDAO.afterCommit(() -> {
+            depositIndex.updateDeleted(depositId, true);
+            depositStatistics.update(indexEntry, indexEntry.map(entry -> entry.withDeleted(true)));
+        });
+        log.debug("onDeleteDeposit - 'deleted' mark has been set to '{}' for deposit.properties from '{}' ", deletedNumber.isPresent(), depositId);
+        return Optional.of(new DepositEvent(DepositEvent.Type.DELETED, depositId, indexEntry.get().getLocation(), indexEntry.get().getDepositState()));
+    }
+
+    @UnitOfWork
+    public void onStorageSizeCalculated(String depositId, long storageInBytes) {
+        Optional<DepositIndex.Entry> indexEntry = lookup(depositId);
+        Optional<Integer> updatedNumber = depositPropertiesDAO.updateStorageInBytes(depositId, storageInBytes);
+        if (updatedNumber.orElse(0) > 0) {
+            depositPropertiesDAO.afterCommit(() -> {
+                depositIndex.updateStorageInBytes(depositId, storageInBytes);
+                depositStatistics.update(indexEntry, indexEntry.map(entry -> entry.withStorageInBytes(storageInBytes)));
+            });
         }
-        catch (IOException e) {
-            log.debug("The 'move deposit' action is processed in two steps: 1. `create` deposit in the new location; 2. `delete` it from the old location. Ignore delete step for {}", depositPropertiesFile.getParentFile().getAbsolutePath());
+        log.debug("onStorageSizeCalculated - storage of deposit '{}' has been set to {} bytes ({} record(s))", depositId, storageInBytes, updatedNumber.orElse(0));
+    }
+
+    @UnitOfWork(readOnly = true)
+    public List<DepositProperties> findPendingStorageSizes(int maxResults) {
+        return depositPropertiesDAO.findPendingStorageSizes(maxResults);
+    }
+
+    @UnitOfWork(readOnly = true)
+    public List<Object[]> findUpdatesByLocation(String location) {
+        return depositPropertiesDAO.findUpdatesByLocation(location);
+    }
+
+    private Optional<DepositEvent> registerOrRelocate(File depositPropertiesFile) {
+        String depositId = depositPropertiesFile.getParentFile().getName();
+        Path depositLocationFolder = Path.of(depositPropertiesFile.getParentFile().getParentFile().getAbsolutePath());
+        Optional<DepositIndex.Entry> indexEntry = lookup(depositId);
+
+        if (indexEntry.isPresent()) {
+            // A known deposit that appears in a deposit box has been moved there. The 'move deposit' action is either processed as `create` in the new location followed by `delete`
+            // from the old location, or paired into a single move.
+            if (isAt(indexEntry.get(), depositLocationFolder) && !indexEntry.get().isDeleted()) {
+                log.debug("registerOrRelocate - deposit '{}' is already registered in '{}'", depositId, depositLocationFolder);
+                return Optional.empty();
+            }
+            Optional<Integer> updatedNumber = depositPropertiesDAO.updateDepositLocation(depositId, depositLocationFolder);
+            if (updatedNumber.orElse(0) > 0) {
+                String location = TextTruncation.stripBegin(depositLocationFolder.toString(), TextTruncation.maxDirectoryLength);
+                depositPropertiesDAO.afterCommit(() -> {
+                    depositIndex.updateLocation(depositId, location);
+                    depositStatistics.update(indexEntry, indexEntry.map(entry -> entry.withLocation(location)));
+                });
+                log.debug("registerOrRelocate - `location` of deposit '{}' has been updated to '{}' ", depositId, depositLocationFolder);
+                return Optional.of(new DepositEvent(DepositEvent.Type.MOVED, depositId, location, indexEntry.get().getDepositState()));
+            }
+            // The record has been removed from the database behind the index's back; register it anew
+            depositIndex.remove(depositId);
         }
+
+        Optional<DepositProperties> dpObject = depositPropertiesAssembler.assembleObject(depositPropertiesFile, false);
+        dpObject.ifPresent(dp -> save(Optional.empty(), dp));
+        log.debug("registerOrRelocate: A new deposit has been registered `{}`", depositPropertiesFile.getParentFile().getAbsolutePath());
+        return dpObject.map(dp -> toEvent(DepositEvent.Type.CREATED, dp));
+    }
+
+    private Optional<DepositIndex.Entry> lookup(String depositId) {
+        Optional<DepositIndex.Entry> indexEntry = depositIndex.get(depositId);
+        if (indexEntry.isPresent() || depositIndex.isComplete())
+            return indexEntry;
+
+        Optional<DepositProperties> dp = depositPropertiesDAO.findById(depositId);
+        dp.ifPresent(depositIndex::put);
+        return dp.map(DepositIndex::entryOf);
+    }
+
+    // The record may have been read into the session by the lookup, so the new state is merged into it rather than saved as a second instance
+    private void save(Optional<DepositIndex.Entry> before, DepositProperties dp) {
+        depositPropertiesDAO.merge(dp);
+        DepositIndex.Entry after = DepositIndex.entryOf(dp);
+        depositPropertiesDAO.afterCommit(() -> {
+            depositIndex.put(dp);
+            depositStatistics.update(before, Optional.of(after));
+        });
+    }
+
+    private boolean isAt(DepositIndex.Entry entry, Path depositLocationFolder) {
+        return TextTruncation.stripBegin(depositLocationFolder.toString(), TextTruncation.maxDirectoryLength).equals(entry.getLocation());
+    }
+
+    private DepositEvent toEvent(DepositEvent.Type type, DepositProperties dp) {
+        return new DepositEvent(type, dp.getDepositId(), dp.getLocation(), dp.getDepositState(), dp.getStorageInBytes() == DepositProperties.storageSizePending);
+    }
+
+    private boolean isUnchanged(DepositIndex.Entry entry, DepositProperties dp) {
+        return !entry.isDeleted()
+            && entry.hasSameProperties(dp)
+            && Objects.equals(entry.getLocation(), dp.getLocation());
     }
 
-}
\ No newline at end of file
+}
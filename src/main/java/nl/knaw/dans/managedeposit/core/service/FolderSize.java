@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+public class FolderSize {
+    public static final FolderSize EMPTY = new FolderSize(0, 0);
+
+    private final long bytes;
+    private final long files;
+
+    public FolderSize(long bytes, long files) {
+        this.bytes = bytes;
+        this.files = files;
+    }
+
+    public FolderSize plus(FolderSize other) {
+        return new FolderSize(bytes + other.bytes, files + other.files);
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.lifecycle.Managed;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the total size and number of files of a directory tree. Directories with at least <code>sequentialThreshold</code> entries are sized in a separate fork-join task, so that
+ * the listings and stat calls of large trees are spread over <code>parallelism</code> threads; smaller directories are sized inline by the task that found them. Symbolic links to
+ * directories are not followed.
+ */
+public class FolderSizer implements Managed {
+    private final int sequentialThreshold;
+    private final IoBudget ioBudget;
+    private final ForkJoinPool pool;
+
+    public FolderSizer(int parallelism, int sequentialThreshold, IoBudget ioBudget) {
+        this.sequentialThreshold = sequentialThreshold;
+        this.ioBudget = ioBudget;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public FolderSize calculate(Path path) {
+        try {
+            List<Path> entries = list(path);
+            DirectoryTask task = new DirectoryTask(entries);
+            return pool != null ? pool.invoke(task) : task.compute();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private class DirectoryTask extends RecursiveTask<FolderSize> {
+        private final List<Path> entries;
+
+        DirectoryTask(List<Path> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        protected FolderSize compute() {
+            try {
+                List<DirectoryTask> forked = new ArrayList<>();
+                FolderSize size = sizeEntries(entries, forked);
+                for (DirectoryTask task : forked) {
+                    size = size.plus(task.join());
+                }
+                return size;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private FolderSize sizeEntries(List<Path> entries, List<DirectoryTask> forked) throws IOException {
+            long bytes = 0;
+            long files = 0;
+            FolderSize inline = FolderSize.EMPTY;
+
+            for (Path entry : entries) {
+                ioBudget.acquire(IoBudget.Priority.LOW, 1);
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    List<Path> subEntries = list(entry);
+                    if (pool != null && subEntries.size() >= sequentialThreshold) {
+                        DirectoryTask task = new DirectoryTask(subEntries);
+                        task.fork();
+                        forked.add(task);
+                    }
+                    else {
+                        inline = inline.plus(sizeEntries(subEntries, forked));
+                    }
+                }
+                else if (attributes.isRegularFile()) {
+                    bytes += attributes.size();
+                    files++;
+                }
+                else if (attributes.isSymbolicLink() && Files.isRegularFile(entry)) {
+                    bytes += Files.size(entry);
+                    files++;
+                }
+            }
+            return inline.plus(new FolderSize(bytes, files));
+        }
+    }
+
+    private List<Path> list(Path directory) throws IOException {
+        ioBudget.acquire(IoBudget.Priority.LOW, 1);
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(entries::add);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.managedeposit.config.InboxHealthConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.ToLongFunction;
+
+/**
+ * Checks the deposit boxes in the background: whether they exist and are readable, and the free space of their file stores. The health check and the gauges
+ * <code>InboxProbe.&lt;box&gt;.usableSpace</code> and <code>totalSpace</code> read the result of the last round, so that they never touch the file system themselves.
+ *
+ * The boxes are checked in parallel, each on a thread of its own. A box that does not answer within <code>timeout</code>, for instance because its NFS mount hangs, is reported as
+ * timed out; it is not checked again until the hanging check has returned, so that a hung mount does not use up threads. The result is stale when no round has finished for
+ * {@value #maxMissedRounds} intervals.
+ */
+public class InboxProbe implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(InboxProbe.class);
+    private static final int maxMissedRounds = 3;
+
+    private final List<Path> depositBoxes;
+    private final InboxHealthConfig config;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "inbox-probe"));
+    private final ExecutorService checkers = Executors.newCachedThreadPool(r -> {
+        // A check that hangs on a dead mount must not keep the service from stopping
+        Thread thread = new Thread(r, "inbox-probe-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Path, Future<BoxStatus>> checks = new HashMap<>();
+    private volatile Map<Path, BoxStatus> statuses = Map.of();
+    private volatile Instant started;
+    private volatile Instant lastRound;
+
+    public static class BoxStatus {
+        private final boolean exists;
+        private final boolean readable;
+        private final boolean timedOut;
+        private final long totalSpace;
+        private final long usableSpace;
+        private final String error;
+        private final Instant checked;
+
+        BoxStatus(boolean exists, boolean readable, boolean timedOut, long totalSpace, long usableSpace, String error) {
+            this.exists = exists;
+            this.readable = readable;
+            this.timedOut = timedOut;
+            this.totalSpace = totalSpace;
+            this.usableSpace = usableSpace;
+            this.error = error;
+            this.checked = Instant.now();
+        }
+
+        public boolean isAccessible() {
+            return exists && readable && !timedOut;
+        }
+
+        public boolean isExists() {
+            return exists;
+        }
+
+        public boolean isReadable() {
+            return readable;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * The size of the file store of the box in bytes, or -1 if unknown.
+         */
+        public long getTotalSpace() {
+            return totalSpace;
+        }
+
+        /**
+         * The space available to this service on the file store of the box in bytes, or -1 if unknown.
+         */
+        public long getUsableSpace() {
+            return usableSpace;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Instant getChecked() {
+            return checked;
+        }
+    }
+
+    public InboxProbe(List<Path> depositBoxes, InboxHealthConfig config, MetricRegistry metricRegistry) {
+        this.depositBoxes = depositBoxes;
+        this.config = config;
+        for (Path box : depositBoxes) {
+            metricRegistry.register(MetricRegistry.name(InboxProbe.class, MetricNames.tag(box), "usableSpace"), (Gauge<Long>) () -> space(box, BoxStatus::getUsableSpace));
+            metricRegistry.register(MetricRegistry.name(InboxProbe.class, MetricNames.tag(box), "totalSpace"), (Gauge<Long>) () -> space(box, BoxStatus::getTotalSpace));
+        }
+    }
+
+    @Override
+    public void start() {
+        started = Instant.now();
+        scheduler.scheduleWithFixedDelay(this::probe, 0, config.getInterval().toMilliseconds(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        checkers.shutdownNow();
+    }
+
+    /**
+     * The result of the last round, in the order of the configured boxes; empty until the first round has finished.
+     */
+    public Map<Path, BoxStatus> getStatuses() {
+        return statuses;
+    }
+
+    /**
+     * Whether the last round, or the first one if none has finished yet, is overdue. The statuses then no longer say anything about the boxes.
+     */
+    public boolean isStale() {
+        Instant since = lastRound != null ? lastRound : started;
+        long maxAge = config.getInterval().toMilliseconds() * maxMissedRounds + config.getTimeout().toMilliseconds();
+        return since != null && since.plusMillis(maxAge).isBefore(Instant.now());
+    }
+
+    public Instant getLastRound() {
+        return lastRound;
+    }
+
+    // An exception that escaped would cancel the schedule, and the health check would report the last result forever
+    private void probe() {
+        try {
+            probeBoxes();
+        }
+        catch (Throwable e) {
+            log.error("Checking the inbox paths failed", e);
+        }
+    }
+
+    private void probeBoxes() {
+        for (Path box : depositBoxes) {
+            Future<BoxStatus> check = checks.get(box);
+            if (check == null || check.isDone()) {
+                checks.put(box, checkers.submit(() -> check(box)));
+            }
+        }
+
+        long deadline = System.nanoTime() + config.getTimeout().toNanoseconds();
+        Map<Path, BoxStatus> result = new LinkedHashMap<>();
+        for (Path box : depositBoxes) {
+            try {
+                result.put(box, checks.get(box).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            catch (TimeoutException e) {
+                log.warn("Inbox path '{}' did not respond within {}", box, config.getTimeout());
+                result.put(box, new BoxStatus(false, false, true, -1, -1, "No response within " + config.getTimeout()));
+            }
+            catch (ExecutionException e) {
+                result.put(box, new BoxStatus(false, false, false, -1, -1, String.valueOf(e.getCause())));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        statuses = result;
+        lastRound = Instant.now();
+    }
+
+    private static BoxStatus check(Path box) {
+        boolean exists = Files.exists(box);
+        boolean readable = Files.isReadable(box);
+        if (!exists) {
+            log.debug("Inbox path '{}' does not exist", box);
+            return new BoxStatus(false, false, false, -1, -1, null);
+        }
+        if (!readable) {
+            log.debug("Inbox path '{}' is not readable", box);
+        }
+        try {
+            FileStore store = Files.getFileStore(box);
+            return new BoxStatus(true, readable, false, store.getTotalSpace(), store.getUsableSpace(), null);
+        }
+        catch (IOException e) {
+            return new BoxStatus(true, readable, false, -1, -1, e.getMessage());
+        }
+    }
+
+    private long space(Path box, ToLongFunction<BoxStatus> space) {
+        BoxStatus status = statuses.get(box);
+        return status == null ? -1 : space.applyAsLong(status);
+    }
+}
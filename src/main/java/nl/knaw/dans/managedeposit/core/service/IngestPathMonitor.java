@@ -15,98 +15,256 @@
  */
 package nl.knaw.dans.managedeposit.core.service;
 
-import io.dropwizard.lifecycle.Managed;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import nl.knaw.dans.managedeposit.config.BoxPollingConfig;
+import nl.knaw.dans.managedeposit.config.PollingConfig;
 import org.apache.commons.io.IOCase;
+import org.apache.commons.io.filefilter.AbstractFileFilter;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.apache.commons.io.filefilter.HiddenFileFilter;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
-import org.apache.commons.io.monitor.FileAlterationMonitor;
 import org.apache.commons.io.monitor.FileAlterationObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-public class IngestPathMonitor extends FileAlterationListenerAdaptor implements Managed {
+/**
+ * Polls the deposit boxes for created, changed and deleted deposit.properties files. Each box is monitored separately, so that the {@link DepositBoxCoordinator} can hand boxes over
+ * between instances, and each box has its own polling interval. In adaptive mode, the interval of a box doubles after every poll that finds no changes, up to its maximum, and
+ * drops back to its configured interval as soon as a change is found. Before its first poll, a box is reconciled with the database by the {@link DepositBoxReconciler}, as the
+ * contents of the box at the start of the monitoring are taken as the baseline.
+ */
+public class IngestPathMonitor extends FileAlterationListenerAdaptor {
     private static final Logger log = LoggerFactory.getLogger(IngestPathMonitor.class);
     private final long pollingInterval;
-    private final List<Path> toMonitorPaths;
-    private final List<FileAlterationMonitor> fileAlterationMonitors;
-    private final DepositStatusUpdater depositStatusUpdater;
-
-    public IngestPathMonitor(List<Path> depositBoxesPaths, DepositStatusUpdater depositStatusUpdater, long pollingInterval) {
-        this.toMonitorPaths = new ArrayList<>(depositBoxesPaths);
-        this.depositStatusUpdater = depositStatusUpdater;
-        this.fileAlterationMonitors = new ArrayList<>();
+    private final PollingConfig pollingConfig;
+    private final Map<Path, BoxPoller> boxPollers;
+    private final DepositMoveCorrelator depositMoveCorrelator;
+    private final DepositBoxReconciler depositBoxReconciler;
+    private final IOFileFilter filter;
+    private final ScheduledExecutorService scheduler;
+    private final MetricRegistry metricRegistry;
+
+    public IngestPathMonitor(DepositMoveCorrelator depositMoveCorrelator, DepositBoxReconciler depositBoxReconciler, long pollingInterval, PollingConfig pollingConfig, int threads,
+        IoBudget ioBudget, MetricRegistry metricRegistry) {
+        this.depositMoveCorrelator = depositMoveCorrelator;
+        this.depositBoxReconciler = depositBoxReconciler;
+        this.boxPollers = new ConcurrentHashMap<>();
         this.pollingInterval = pollingInterval;
-    }
+        this.pollingConfig = pollingConfig;
+        this.metricRegistry = metricRegistry;
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(1, threads), r -> new Thread(r, "ingest-path-monitor"));
 
-    private void startMonitors() throws Exception {
         IOFileFilter directories = FileFilterUtils.and(FileFilterUtils.directoryFileFilter(), HiddenFileFilter.VISIBLE);
         IOFileFilter files = FileFilterUtils.and(FileFilterUtils.fileFileFilter(), FileFilterUtils.nameFileFilter("deposit.properties", IOCase.INSENSITIVE));
-        IOFileFilter filter = FileFilterUtils.or(directories, files);
+        IOFileFilter accepted = FileFilterUtils.or(directories, files);
+        // The observer passes every entry of the scanned directories through the filter, and stats the accepted ones
+        this.filter = new AbstractFileFilter() {
+            @Override
+            public boolean accept(File file) {
+                ioBudget.acquire(IoBudget.Priority.LOW, 1);
+                return accepted.accept(file);
+            }
+        };
+    }
 
-        log.info("Starting 'IngestPathMonitor', file filter: deposit.properties");
+    public synchronized void startMonitoring(Path folder) throws InvalidTransferItemException {
+        if (boxPollers.containsKey(folder))
+            return;
 
-        for (Path folder : toMonitorPaths) {
-            FileAlterationObserver observer = new FileAlterationObserver(folder.toFile(), filter);
+        FileAlterationObserver observer = new FileAlterationObserver(folder.toFile(), filter);
+        try {
+            observer.initialize();
+        }
+        catch (Exception e) {
+            throw new InvalidTransferItemException(String.format("Cannot monitor the folder '%s': %s", folder, e.getMessage()), e);
+        }
 
-            observer.addListener(this);
+        BoxPoller poller = new BoxPoller(folder, observer);
+        observer.addListener(poller);
+        boxPollers.put(folder, poller);
+        metricRegistry.register(pollingIntervalMetric(folder), (Gauge<Long>) () -> poller.currentInterval);
+        poller.schedule();
+        log.info("'IngestPathMonitor' is monitoring the folder '{}' every {} ms{}, file filter: deposit.properties", folder, poller.minInterval,
+            poller.adaptive ? String.format(" (adaptive, up to %d ms)", poller.maxInterval) : "");
+    }
 
-            FileAlterationMonitor monitor = new FileAlterationMonitor(this.pollingInterval, observer);
-            fileAlterationMonitors.add(monitor);
+    public synchronized void stopMonitoring(Path folder) {
+        BoxPoller poller = boxPollers.remove(folder);
+        if (poller == null)
+            return;
 
-            monitor.start();
-            log.debug("'IngestPathMonitor' is going to monitor the folder '{}'", folder);
-        }
+        poller.stop();
+        metricRegistry.remove(pollingIntervalMetric(folder));
+        log.info("'IngestPathMonitor' has stopped monitoring the folder '{}'", folder);
     }
 
-    @Override
-    public void start() throws Exception {
-        try {
-            startMonitors();
-        }
-        catch (IOException | InterruptedException e) {
-            log.error(e.getMessage(), e);
-            throw new InvalidTransferItemException(e.getMessage());
-        }
+    public synchronized void stopAll() {
+        log.info("Stopping IngestPathMonitor");
+        new ArrayList<>(boxPollers.keySet()).forEach(this::stopMonitoring);
     }
 
-    @Override
-    public void stop() throws Exception {
-        log.info("Stopping IngestPathMonitor");
+    /**
+     * Stops the polling threads; the monitor cannot be used afterwards.
+     */
+    public void shutdown() throws InterruptedException {
+        stopAll();
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
 
-        fileAlterationMonitors.forEach(monitor -> {
-            try {
-                monitor.stop();
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        });
+    public Set<Path> getMonitoredFolders() {
+        return Set.copyOf(boxPollers.keySet());
+    }
+
+    private static String pollingIntervalMetric(Path folder) {
+        return MetricRegistry.name(IngestPathMonitor.class, MetricNames.tag(folder), "pollingInterval");
+    }
+
+    private BoxPollingConfig boxConfig(Path folder) {
+        for (Map.Entry<String, BoxPollingConfig> entry : pollingConfig.getBoxes().entrySet()) {
+            if (Path.of(entry.getKey()).toAbsolutePath().normalize().equals(folder.toAbsolutePath().normalize()))
+                return entry.getValue();
+        }
+        return new BoxPollingConfig();
     }
 
     @Override
     public void onFileCreate(File file) {
         log.debug("onFileCreate: '{}'", file.getAbsolutePath());
-        depositStatusUpdater.onCreateDeposit(file);
+        depositMoveCorrelator.onCreate(file);
     }
 
     @Override
     public void onFileDelete(File file) {
         log.debug("onFileDelete: '{}'", file.getAbsolutePath());
-        depositStatusUpdater.onDeleteDeposit(file);
+        depositMoveCorrelator.onDelete(file);
     }
 
     @Override
     public void onFileChange(File file) {
         log.debug("onFileChange: '{}'", file.getAbsolutePath());
-        depositStatusUpdater.onChangeDeposit(file);
+        depositMoveCorrelator.onChange(file);
     }
 
+    /**
+     * Polls one box; it notes whether a poll found any change, so that the next poll can be scheduled accordingly.
+     */
+    private class BoxPoller extends FileAlterationListenerAdaptor {
+        private final Path folder;
+        private final FileAlterationObserver observer;
+        private final long minInterval;
+        private final long maxInterval;
+        private final boolean adaptive;
+        private volatile long currentInterval;
+        private boolean changed;
+        private boolean reconciled;
+        private volatile boolean stopped;
+        private ScheduledFuture<?> next;
+
+        BoxPoller(Path folder, FileAlterationObserver observer) {
+            BoxPollingConfig config = boxConfig(folder);
+            this.folder = folder;
+            this.observer = observer;
+            this.minInterval = config.getInterval() != null ? config.getInterval().toMilliseconds() : pollingInterval;
+            this.adaptive = config.getAdaptive() != null ? config.getAdaptive() : pollingConfig.isAdaptive();
+            Duration max = config.getMaxInterval() != null ? config.getMaxInterval() : pollingConfig.getMaxInterval();
+            this.maxInterval = Math.max(minInterval, max.toMilliseconds());
+            this.currentInterval = minInterval;
+        }
+
+        synchronized void schedule() {
+            if (!stopped)
+                next = scheduler.schedule(this::poll, currentInterval, TimeUnit.MILLISECONDS);
+        }
+
+        // Not synchronized with stop(): a poll can block on a full event queue, and must not block the release of its box with it. Events found after the box has been stopped are
+        // dropped by the listener methods instead.
+        private void poll() {
+            if (stopped)
+                return;
+            changed = false;
+            if (!reconciled) {
+                // After the baseline has been taken, so that nothing falls between the two; what is found twice is applied twice, without effect
+                try {
+                    depositBoxReconciler.reconcile(folder);
+                    reconciled = true;
+                }
+                catch (RuntimeException e) {
+                    log.warn("Reconciling the folder '{}' with the database failed; retrying at the next poll: {}", folder, e.getMessage());
+                }
+            }
+            try {
+                observer.checkAndNotify();
+            }
+            catch (RuntimeException e) {
+                log.error("Polling the folder '{}' failed", folder, e);
+            }
+            if (adaptive) {
+                long interval = changed ? minInterval : Math.min(maxInterval, currentInterval * 2);
+                if (interval != currentInterval)
+                    log.debug("Polling interval of '{}' is now {} ms", folder, interval);
+                currentInterval = interval;
+            }
+            schedule();
+        }
+
+        void stop() {
+            stopped = true;
+            synchronized (this) {
+                if (next != null)
+                    next.cancel(false);
+            }
+            try {
+                observer.destroy();
+            }
+            catch (Exception e) {
+                log.warn("Could not release the observer of '{}': {}", folder, e.getMessage());
+            }
+        }
+
+        @Override
+        public void onDirectoryCreate(File directory) {
+            changed = true;
+        }
+
+        @Override
+        public void onDirectoryDelete(File directory) {
+            changed = true;
+        }
+
+        @Override
+        public void onFileCreate(File file) {
+            changed = true;
+            if (!stopped)
+                IngestPathMonitor.this.onFileCreate(file);
+        }
+
+        @Override
+        public void onFileDelete(File file) {
+            changed = true;
+            if (!stopped)
+                IngestPathMonitor.this.onFileDelete(file);
+        }
+
+        @Override
+        public void onFileChange(File file) {
+            changed = true;
+            if (!stopped)
+                IngestPathMonitor.this.onFileChange(file);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import nl.knaw.dans.managedeposit.config.IoBudgetConfig;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that limits the file system metadata calls (stat, directory entries, small reads) of this service, so that scanning the deposit boxes and walking the deposits
+ * leaves room for the ingest workers on the same storage. The bucket holds at most <code>burst</code> tokens and is refilled at <code>statCallsPerSecond</code>.
+ *
+ * Reads of deposit.properties files have priority: while one of them is waiting, scans and walks wait too, and those leave <code>reserve</code> tokens in the bucket for them. The
+ * granted calls are metered as <code>IoBudget.&lt;priority&gt;.calls</code>; the calls that had to wait are timed as <code>IoBudget.&lt;priority&gt;.throttled</code>.
+ */
+public class IoBudget {
+    public enum Priority {
+        // Reading deposit.properties
+        HIGH,
+        // Scanning deposit boxes and walking deposit directories
+        LOW
+    }
+
+    private final double permitsPerSecond;
+    private final double capacity;
+    private final double reserve;
+    private final Map<Priority, Meter> calls = new EnumMap<>(Priority.class);
+    private final Map<Priority, Timer> throttled = new EnumMap<>(Priority.class);
+
+    // Guarded by this
+    private double tokens;
+    private long lastRefill;
+    private int highPriorityWaiting;
+
+    public IoBudget(IoBudgetConfig config, MetricRegistry metricRegistry) {
+        this.permitsPerSecond = config.getStatCallsPerSecond();
+        this.capacity = config.getBurst();
+        this.reserve = Math.min(config.getReserve(), config.getBurst() - 1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+        for (Priority priority : Priority.values()) {
+            String name = priority.name().toLowerCase();
+            calls.put(priority, metricRegistry.meter(MetricRegistry.name(IoBudget.class, name, "calls")));
+            throttled.put(priority, metricRegistry.timer(MetricRegistry.name(IoBudget.class, name, "throttled")));
+        }
+        metricRegistry.register(MetricRegistry.name(IoBudget.class, "available"), (Gauge<Long>) this::available);
+    }
+
+    public boolean isEnabled() {
+        return permitsPerSecond > 0;
+    }
+
+    /**
+     * Waits until the calls fit in the budget. An interrupted caller stops waiting and proceeds, with the interrupt flag set, so that it can notice that it should stop.
+     */
+    public void acquire(Priority priority, int permits) {
+        if (!isEnabled())
+            return;
+
+        long start = System.nanoTime();
+        boolean waited = false;
+        synchronized (this) {
+            if (priority == Priority.HIGH)
+                highPriorityWaiting++;
+            try {
+                double needed = Math.min(permits, capacity);
+                double required = priority == Priority.HIGH ? needed : Math.min(needed + reserve, capacity);
+                while (true) {
+                    refill();
+                    if (tokens >= required && (priority == Priority.HIGH || highPriorityWaiting == 0)) {
+                        tokens -= needed;
+                        break;
+                    }
+                    waited = true;
+                    wait(Math.max(1, (long) Math.ceil((required - tokens) * 1000 / permitsPerSecond)));
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                if (priority == Priority.HIGH)
+                    highPriorityWaiting--;
+            }
+        }
+        calls.get(priority).mark(permits);
+        if (waited)
+            throttled.get(priority).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized long available() {
+        if (!isEnabled())
+            return 0;
+        refill();
+        return (long) tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import java.util.regex.Pattern;
+
+/**
+ * Parts of metric names that are taken from data, such as the path of a deposit box. Reporters split metric names on dots, and many monitoring backends reject slashes and other
+ * characters, so every run of characters other than letters, digits, '-' and '_' is replaced by a single '_': the box <code>/var/opt/dans.knaw.nl/tmp/auto-ingest/inbox</code>
+ * becomes <code>var_opt_dans_knaw_nl_tmp_auto-ingest_inbox</code>.
+ */
+public class MetricNames {
+    private static final Pattern unsafe = Pattern.compile("[^A-Za-z0-9_-]+");
+
+    private MetricNames() {
+    }
+
+    public static String tag(Object value) {
+        if (value == null)
+            return "unknown";
+        String tag = unsafe.matcher(value.toString()).replaceAll("_");
+        int begin = tag.startsWith("_") ? 1 : 0;
+        int end = tag.length() > begin && tag.endsWith("_") ? tag.length() - 1 : tag.length();
+        tag = tag.substring(begin, end);
+        return tag.isEmpty() ? "unknown" : tag;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+
+/**
+ * Decides whether this instance runs the background tasks that work on all records rather than on the deposits of its own boxes: archiving, the rescan for pending storage sizes
+ * and the detection of stuck deposits. Run on several instances at once, they would move the same records concurrently, walk the same deposits twice and report the same stuck
+ * deposits from every instance. With shared box ownership, only the instance that holds the task lock of the {@link DepositBoxLocks} runs them; when it goes away, another
+ * instance takes the lock at its next run.
+ */
+public class SingleInstanceTasks {
+    private static final Logger log = LoggerFactory.getLogger(SingleInstanceTasks.class);
+
+    private final DepositBoxLocks depositBoxLocks;
+    private volatile boolean owner;
+
+    public SingleInstanceTasks(DepositBoxLocks depositBoxLocks) {
+        this.depositBoxLocks = depositBoxLocks;
+    }
+
+    /**
+     * Whether the task should run on this instance now; claims the tasks if no other instance holds them. Checked at the start of every run.
+     */
+    public boolean isOwner() {
+        boolean wasOwner = owner;
+        try {
+            owner = depositBoxLocks.tryLockTasks();
+        }
+        catch (SQLException e) {
+            log.warn("Cannot tell whether this instance runs the background tasks; skipping them: {}", e.getMessage());
+            owner = false;
+        }
+        if (owner != wasOwner)
+            log.info(owner ? "This instance runs the background tasks" : "Another instance runs the background tasks");
+        return owner;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import nl.knaw.dans.managedeposit.config.StorageSizeConfig;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fills in the storage size of deposits that have been registered with {@link DepositProperties#storageSizePending}. Deposits are queued after their registration has been
+ * committed, and periodically from the database, which picks up deposits that did not fit in the queue, that were moved while queued, or that were pending at shutdown. A deposit
+ * that cannot be walked is left alone for a backoff that doubles with every attempt, and is marked with {@link DepositProperties#storageSizeFailed} after the last attempt.
+ */
+public class StorageSizeWorker implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(StorageSizeWorker.class);
+
+    private final DepositStatusUpdater depositStatusUpdater;
+    private final FolderSizer folderSizer;
+    private final StorageSizeConfig config;
+    private final SingleInstanceTasks singleInstanceTasks;
+    private final PriorityBlockingQueue<Job> queue;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Map<String, Failure> failures = new ConcurrentHashMap<>();
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final Counter completed;
+    private final Counter failed;
+    private final Timer walkTime;
+
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledExecutorService rescanner = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "storage-size-rescan"));
+    private volatile boolean running;
+
+    private static class Job {
+        private final String depositId;
+        private final Path depositPath;
+        private final OffsetDateTime since;
+
+        Job(String depositId, Path depositPath, OffsetDateTime since) {
+            this.depositId = depositId;
+            this.depositPath = depositPath;
+            this.since = since;
+        }
+    }
+
+    private static class Failure {
+        private final int attempts;
+        private final Instant retryAfter;
+
+        Failure(int attempts, Instant retryAfter) {
+            this.attempts = attempts;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    public StorageSizeWorker(DepositStatusUpdater depositStatusUpdater, FolderSizer folderSizer, StorageSizeConfig config, SingleInstanceTasks singleInstanceTasks,
+        MetricRegistry metricRegistry) {
+        this.depositStatusUpdater = depositStatusUpdater;
+        this.folderSizer = folderSizer;
+        this.config = config;
+        this.singleInstanceTasks = singleInstanceTasks;
+
+        Comparator<Job> oldestFirst = Comparator.comparing((Job job) -> job.since, Comparator.nullsFirst(Comparator.naturalOrder()));
+        this.queue = new PriorityBlockingQueue<>(64, config.getPriority() == StorageSizeConfig.Priority.OLDEST_FIRST ? oldestFirst : oldestFirst.reversed());
+
+        metricRegistry.register(MetricRegistry.name(StorageSizeWorker.class, "queued"), (Gauge<Integer>) queue::size);
+        metricRegistry.register(MetricRegistry.name(StorageSizeWorker.class, "inProgress"), (Gauge<Integer>) inProgress::get);
+        this.completed = metricRegistry.counter(MetricRegistry.name(StorageSizeWorker.class, "completed"));
+        this.failed = metricRegistry.counter(MetricRegistry.name(StorageSizeWorker.class, "failed"));
+        this.walkTime = metricRegistry.timer(MetricRegistry.name(StorageSizeWorker.class, "walkTime"));
+    }
+
+    /**
+     * Queues the deposit, unless it is already queued or the queue is full; in the latter case it is picked up by the next rescan.
+     */
+    public void submit(String depositId, Path depositPath, OffsetDateTime since) {
+        if (queue.size() >= config.getQueueCapacity()) {
+            log.debug("Storage size queue is full; '{}' will be picked up by the next rescan", depositId);
+            return;
+        }
+        if (queued.add(depositId)) {
+            queue.add(new Job(depositId, depositPath, since));
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        for (int i = 0; i < config.getThreads(); i++) {
+            Thread worker = new Thread(this::work, "storage-size-worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        long interval = config.getRescanInterval().toMilliseconds();
+        rescanner.scheduleWithFixedDelay(this::rescan, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        running = false;
+        rescanner.shutdownNow();
+        workers.forEach(Thread::interrupt);
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        log.info("Stopped storage size worker; {} deposit(s) remain pending", queue.size());
+    }
+
+    // Deposits registered by this instance are queued by it; the rescan covers all instances, so it runs on one of them
+    private void rescan() {
+        if (!singleInstanceTasks.isOwner())
+            return;
+        try {
+            int room = config.getQueueCapacity() - queue.size();
+            if (room <= 0)
+                return;
+
+            // Deposits that are waiting for a retry are skipped, so ask for as many more as there can be
+            List<DepositProperties> pending = depositStatusUpdater.findPendingStorageSizes(room + failures.size());
+            Instant now = Instant.now();
+            int submitted = 0;
+            for (DepositProperties dp : pending) {
+                Failure failure = failures.get(dp.getDepositId());
+                if (failure != null && failure.retryAfter.isAfter(now))
+                    continue;
+                submit(dp.getDepositId(), Path.of(dp.getLocation(), dp.getDepositId()), dp.getDepositUpdateTimestamp());
+                submitted++;
+            }
+            if (submitted > 0) {
+                log.info("Queued {} deposit(s) with pending storage size", submitted);
+            }
+        }
+        catch (RuntimeException e) {
+            // Keep the schedule alive; the next rescan will try again
+            log.warn("Could not rescan deposits with pending storage size: {}", e.getMessage());
+        }
+    }
+
+    private void work() {
+        while (running) {
+            Job job;
+            try {
+                job = queue.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            queued.remove(job.depositId);
+            inProgress.incrementAndGet();
+            try (Timer.Context ignored = walkTime.time()) {
+                FolderSize size = folderSizer.calculate(job.depositPath);
+                depositStatusUpdater.onStorageSizeCalculated(job.depositId, size.getBytes());
+                failures.remove(job.depositId);
+                completed.inc();
+                log.debug("Storage size of '{}': {} file(s), {} bytes", job.depositPath, size.getFiles(), size.getBytes());
+            }
+            catch (UncheckedIOException e) {
+                failed.inc();
+                if (e.getCause() instanceof NoSuchFileException) {
+                    log.debug("Deposit '{}' has been moved or removed before its size could be computed", job.depositPath);
+                }
+                else {
+                    log.warn("Could not compute the storage size of '{}'", job.depositPath, e);
+                }
+                walkFailed(job);
+            }
+            catch (RuntimeException e) {
+                failed.inc();
+                log.warn("Could not store the storage size of '{}'", job.depositId, e);
+            }
+            finally {
+                inProgress.decrementAndGet();
+            }
+        }
+    }
+
+    private void walkFailed(Job job) {
+        Failure previous = failures.get(job.depositId);
+        int attempts = previous != null ? previous.attempts + 1 : 1;
+        if (attempts < config.getMaxAttempts()) {
+            long backoff = config.getRetryBackoff().toMilliseconds() << Math.min(attempts - 1, 20);
+            failures.put(job.depositId, new Failure(attempts, Instant.now().plusMillis(backoff)));
+            return;
+        }
+
+        failures.remove(job.depositId);
+        try {
+            depositStatusUpdater.onStorageSizeCalculated(job.depositId, DepositProperties.storageSizeFailed);
+            log.warn("Gave up computing the storage size of '{}' after {} attempt(s)", job.depositPath, attempts);
+        }
+        catch (RuntimeException e) {
+            log.warn("Could not mark the storage size of '{}' as failed", job.depositId, e);
+        }
+    }
+}
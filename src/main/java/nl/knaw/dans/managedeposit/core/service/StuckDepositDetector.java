@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import nl.knaw.dans.managedeposit.config.StuckDepositsConfig;
+import nl.knaw.dans.managedeposit.core.DepositEvent;
+import nl.knaw.dans.managedeposit.core.DepositEventBatch;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Finds deposits that have stayed in a state such as SUBMITTED or FINALIZING for longer than the threshold configured for that state, without having been updated.
+ *
+ * The detector keeps the deposits in the watched states as candidates. Each run only reads the records of those states that have been updated since the previous run, from the index
+ * on state and update timestamp; a candidate that has passed its threshold is read again by id before it is reported, as it may have moved on to another state in the meantime.
+ * Every <code>rescanInterval</code> the candidates are read anew.
+ *
+ * A deposit that is registered, or moved into another box, gets the update timestamp of its deposit.properties, which may be far in the past. The detector therefore follows the
+ * {@link DepositEventBuffer}: such deposits are read by id in the next run, and their time in state is counted from the later of the update timestamp and the time they were
+ * registered, so that they are neither missed until the next rescan nor reported as stuck the moment they arrive. If the buffer has overflowed since the previous run, the next
+ * run is a rescan. The result is served by <code>/report/stuck</code> and counted in the gauges <code>StuckDepositDetector.&lt;state&gt;.count</code> and
+ * <code>oldestAge</code> (ms).
+ */
+public class StuckDepositDetector implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(StuckDepositDetector.class);
+
+    // Records are committed some time after their update timestamp has been set; look back this far before the previous run
+    private static final long overlapSeconds = 60;
+
+    private static final int eventBatchSize = 1000;
+
+    private final StuckDepositFinder stuckDepositFinder;
+    private final StuckDepositsConfig config;
+    private final DepositEventBuffer depositEventBuffer;
+    private final SingleInstanceTasks singleInstanceTasks;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "stuck-deposit-detector"));
+
+    // Only accessed by the scheduler thread
+    private final Map<String, DepositProperties> candidates = new HashMap<>();
+    private final Map<String, OffsetDateTime> registered = new HashMap<>();
+    private long lastSequence;
+    private OffsetDateTime lastRun;
+    private OffsetDateTime lastRescan;
+
+    private volatile List<DepositProperties> stuck = List.of();
+    private volatile Map<String, OffsetDateTime> stuckSince = Map.of();
+
+    public StuckDepositDetector(StuckDepositFinder stuckDepositFinder, DepositEventBuffer depositEventBuffer, StuckDepositsConfig config, SingleInstanceTasks singleInstanceTasks,
+        MetricRegistry metricRegistry) {
+        this.stuckDepositFinder = stuckDepositFinder;
+        this.depositEventBuffer = depositEventBuffer;
+        this.singleInstanceTasks = singleInstanceTasks;
+        this.config = config;
+        for (String state : config.getThresholds().keySet()) {
+            metricRegistry.register(MetricRegistry.name(StuckDepositDetector.class, MetricNames.tag(state), "count"), (Gauge<Long>) () -> stuck.stream()
+                .filter(dp -> state.equals(dp.getDepositState()))
+                .count());
+            metricRegistry.register(MetricRegistry.name(StuckDepositDetector.class, MetricNames.tag(state), "oldestAge"), (Gauge<Long>) () -> stuck.stream()
+                .filter(dp -> state.equals(dp.getDepositState()))
+                .map(dp -> stuckSince.getOrDefault(dp.getDepositId(), dp.getDepositUpdateTimestamp()).until(OffsetDateTime.now(), ChronoUnit.MILLIS))
+                .max(Long::compare)
+                .orElse(0L));
+        }
+    }
+
+    @Override
+    public void start() {
+        // Deposits registered before this point are found by the first run, which is a rescan
+        lastSequence = depositEventBuffer.getLastSequence();
+        long interval = config.getInterval().toMilliseconds();
+        scheduler.scheduleWithFixedDelay(this::run, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The stuck deposits found by the last run, longest stuck first.
+     */
+    public List<DepositProperties> getStuckDeposits() {
+        return stuck;
+    }
+
+    private void run() {
+        if (!singleInstanceTasks.isOwner()) {
+            // Another instance reports the stuck deposits; should this one take over, it starts with a rescan
+            stuck = List.of();
+            stuckSince = Map.of();
+            candidates.clear();
+            registered.clear();
+            lastSequence = depositEventBuffer.getLastSequence();
+            lastRescan = null;
+            return;
+        }
+        try {
+            OffsetDateTime started = OffsetDateTime.now();
+            boolean overflowed = readRegistrations();
+            boolean rescan = overflowed || lastRescan == null || !lastRescan.plus(config.getRescanInterval().toMilliseconds(), ChronoUnit.MILLIS).isAfter(started);
+            OffsetDateTime since = rescan ? null : lastRun.minusSeconds(overlapSeconds);
+            if (rescan)
+                candidates.clear();
+            for (String state : config.getThresholds().keySet()) {
+                for (DepositProperties dp : stuckDepositFinder.findInStateUpdatedSince(state, since)) {
+                    candidates.put(dp.getDepositId(), dp);
+                }
+            }
+            if (!registered.isEmpty()) {
+                // Registered with an update timestamp that the incremental query above may not cover
+                List<String> unknown = registered.keySet().stream().filter(id -> !candidates.containsKey(id)).collect(Collectors.toList());
+                if (!unknown.isEmpty())
+                    stuckDepositFinder.findByIds(unknown).stream()
+                        .filter(dp -> !dp.isDeleted() && thresholdOf(dp).isPresent())
+                        .forEach(dp -> candidates.put(dp.getDepositId(), dp));
+                registered.keySet().retainAll(candidates.keySet());
+            }
+            lastRun = started;
+            if (rescan)
+                lastRescan = started;
+
+            List<DepositProperties> found = verify(candidates.values().stream()
+                .filter(dp -> isOverdue(dp, started))
+                .map(DepositProperties::getDepositId)
+                .collect(Collectors.toList()), started);
+            Map<String, OffsetDateTime> baselines = new HashMap<>();
+            found.forEach(dp -> baselines.put(dp.getDepositId(), baselineOf(dp)));
+            stuckSince = Map.copyOf(baselines);
+            stuck = found;
+            if (!stuck.isEmpty())
+                log.info("{} deposit(s) are stuck", stuck.size());
+        }
+        catch (RuntimeException e) {
+            // Keep the schedule alive; the next run reads the same changes again
+            log.warn("Looking for stuck deposits failed: {}", e.getMessage());
+        }
+    }
+
+    // Notes when deposits were registered in their current box; returns whether events have been missed
+    private boolean readRegistrations() {
+        DepositEventBatch batch;
+        boolean overflowed = false;
+        do {
+            batch = depositEventBuffer.since(lastSequence, eventBatchSize);
+            overflowed |= batch.isTruncated();
+            for (DepositEvent event : batch.getEvents()) {
+                if (event.getType() == DepositEvent.Type.CREATED || event.getType() == DepositEvent.Type.MOVED)
+                    registered.put(event.getDepositId(), event.getTimestamp());
+                else if (event.getType() == DepositEvent.Type.DELETED)
+                    registered.remove(event.getDepositId());
+            }
+            lastSequence = batch.getLastSequence();
+        }
+        while (!batch.getEvents().isEmpty());
+        return overflowed;
+    }
+
+    // Reads the overdue candidates again; those that have been updated, moved on or deleted are no longer candidates
+    private List<DepositProperties> verify(List<String> overdue, OffsetDateTime now) {
+        if (overdue.isEmpty())
+            return List.of();
+
+        Map<String, DepositProperties> current = new HashMap<>();
+        stuckDepositFinder.findByIds(overdue).forEach(dp -> current.put(dp.getDepositId(), dp));
+        List<DepositProperties> result = new ArrayList<>();
+        for (String depositId : overdue) {
+            DepositProperties dp = current.get(depositId);
+            if (dp == null || dp.isDeleted() || thresholdOf(dp).isEmpty()) {
+                candidates.remove(depositId);
+                registered.remove(depositId);
+            }
+            else {
+                candidates.put(depositId, dp);
+                if (isOverdue(dp, now))
+                    result.add(dp);
+            }
+        }
+        result.sort(Comparator.comparing(this::baselineOf));
+        return List.copyOf(result);
+    }
+
+    private boolean isOverdue(DepositProperties dp, OffsetDateTime now) {
+        return dp.getDepositUpdateTimestamp() != null && thresholdOf(dp)
+            .map(threshold -> baselineOf(dp).plus(threshold.toMilliseconds(), ChronoUnit.MILLIS).isBefore(now))
+            .orElse(false);
+    }
+
+    // The time from which the deposit is counted as being in its state
+    private OffsetDateTime baselineOf(DepositProperties dp) {
+        OffsetDateTime registeredAt = registered.get(dp.getDepositId());
+        return registeredAt != null && registeredAt.isAfter(dp.getDepositUpdateTimestamp()) ? registeredAt : dp.getDepositUpdateTimestamp();
+    }
+
+    private Optional<Duration> thresholdOf(DepositProperties dp) {
+        return Optional.ofNullable(dp.getDepositState()).map(config.getThresholds()::get);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import io.dropwizard.hibernate.UnitOfWork;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/**
+ * The queries of the {@link StuckDepositDetector}, each in a read-only unit of work of its own.
+ */
+public class StuckDepositFinder {
+    private static final int chunkSize = 500;
+
+    private final DepositPropertiesDAO depositPropertiesDAO;
+
+    public StuckDepositFinder(DepositPropertiesDAO depositPropertiesDAO) {
+        this.depositPropertiesDAO = depositPropertiesDAO;
+    }
+
+    @UnitOfWork(readOnly = true)
+    public List<DepositProperties> findInStateUpdatedSince(String depositState, OffsetDateTime since) {
+        return depositPropertiesDAO.findInStateUpdatedSince(depositState, since);
+    }
+
+    @UnitOfWork(readOnly = true)
+    public List<DepositProperties> findByIds(List<String> depositIds) {
+        return depositPropertiesDAO.findByIds(depositIds, chunkSize);
+    }
+}
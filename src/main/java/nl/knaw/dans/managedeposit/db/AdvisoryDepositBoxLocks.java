@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import io.dropwizard.db.DataSourceFactory;
+import nl.knaw.dans.managedeposit.core.service.DepositBoxLocks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Claims deposit boxes with PostgreSQL session-level advisory locks. The locks are held on a dedicated connection, outside the connection pool, so that they are released by the
+ * database as soon as that connection is lost, for instance because the instance has died. Each instance also holds a lock on its own backend pid, by which the live instances are
+ * counted, and the instance that runs the {@link nl.knaw.dans.managedeposit.core.service.SingleInstanceTasks} holds the task lock.
+ *
+ * A box is identified by the hash of its normalized absolute path, so all instances must configure the boxes with the same paths.
+ */
+public class AdvisoryDepositBoxLocks implements DepositBoxLocks {
+    private static final Logger log = LoggerFactory.getLogger(AdvisoryDepositBoxLocks.class);
+
+    // First keys of the two-key advisory locks; arbitrary, but must not be used by other applications on the same database
+    private static final int boxNamespace = 0x44444d00;
+    private static final int instanceNamespace = 0x44444d01;
+    private static final int taskNamespace = 0x44444d02;
+
+    private final DataSourceFactory dataSourceFactory;
+    private Connection connection;
+    private boolean holdsTasks;
+
+    public AdvisoryDepositBoxLocks(DataSourceFactory dataSourceFactory) {
+        this.dataSourceFactory = dataSourceFactory;
+    }
+
+    @Override
+    public synchronized int countInstances() throws SQLException {
+        try (PreparedStatement statement = connection().prepareStatement(
+            "select count(distinct pid) from pg_locks where locktype = 'advisory' and granted and objsubid = 2 and classid = " + instanceNamespace);
+            ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    @Override
+    public synchronized boolean tryLock(Path depositBox) throws SQLException {
+        return execute("select pg_try_advisory_lock(?, ?)", boxNamespace, keyOf(depositBox));
+    }
+
+    @Override
+    public synchronized void unlock(Path depositBox) throws SQLException {
+        execute("select pg_advisory_unlock(?, ?)", boxNamespace, keyOf(depositBox));
+    }
+
+    @Override
+    public synchronized boolean tryLockTasks() throws SQLException {
+        if (holdsTasks) {
+            // Fails if the connection, and with it the lock, has been lost
+            connection();
+        }
+        else {
+            // Session-level advisory locks are reentrant, so the lock is only taken while it is not held
+            holdsTasks = execute("select pg_try_advisory_lock(?, ?)", taskNamespace, 0);
+        }
+        return holdsTasks;
+    }
+
+    @Override
+    public synchronized void close() {
+        holdsTasks = false;
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            log.debug("Closing the connection for the deposit box locks failed: {}", e.getMessage());
+        }
+        connection = null;
+    }
+
+    // A broken connection is not silently replaced: its locks are gone, so the caller must stop monitoring its boxes before claiming anything on the new connection
+    private Connection connection() throws SQLException {
+        if (connection != null && !connection.isValid(5)) {
+            close();
+            throw new SQLException("The connection that held the deposit box locks has been lost");
+        }
+        if (connection == null) {
+            connection = DriverManager.getConnection(dataSourceFactory.getUrl(), dataSourceFactory.getUser(), dataSourceFactory.getPassword());
+            connection.setAutoCommit(true);
+            try (PreparedStatement statement = connection.prepareStatement("select pg_advisory_lock(" + instanceNamespace + ", pg_backend_pid())")) {
+                statement.execute();
+            }
+            log.info("Connected to the database for deposit box ownership");
+        }
+        return connection;
+    }
+
+    private boolean execute(String sql, int namespace, int key) throws SQLException {
+        try (PreparedStatement statement = connection().prepareStatement(sql)) {
+            statement.setInt(1, namespace);
+            statement.setInt(2, key);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    // pg_locks reports the keys as oids; keep them positive so that they read the same in both places
+    private static int keyOf(Path depositBox) {
+        return depositBox.toAbsolutePath().normalize().toString().hashCode() & 0x7fffffff;
+    }
+}
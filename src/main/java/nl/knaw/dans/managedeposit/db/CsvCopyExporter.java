@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import nl.knaw.dans.managedeposit.core.DepositFilter;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.postgresql.PGConnection;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Writes CSV reports with PostgreSQL's <code>COPY (SELECT ...) TO STDOUT</code>, straight from the database to the response, without materializing any entities. The output is
+ * the same as that of the {@link nl.knaw.dans.managedeposit.core.CsvMessageBodyWriter}: ISO-8601 timestamps with the offset of the service, as Jackson writes them (no trailing
+ * zeros in the fraction, <code>Z</code> for UTC), booleans as <code>true</code>/<code>false</code>, empty strings as empty fields, and nothing at all, not even a header, for an
+ * empty report.
+ *
+ * COPY's own CSV format quotes fewer values than Jackson does, so the query writes each CSV line itself, quoted the way Jackson quotes, and COPY's text format carries the lines.
+ * The escapes of that format are undone while the output is written.
+ *
+ * The depositor, state and location are looked up in the tables of the {@link DepositDictionary}; the filter compares their keys.
+ *
+ * COPY does not accept bind parameters, so the filter values are written into the statement as string literals, with standard_conforming_strings switched on for the transaction.
+ */
+public class CsvCopyExporter {
+    private static final Map<String, String> columns = Map.of(
+        "depositor", "dr.name",
+        "depositId", "dp.deposit_id",
+        "bagName", "dp.bag_name",
+        "depositState", "ds.name",
+        "depositCreationTimestamp", "dp.deposit_creation_timestamp",
+        "depositUpdateTimestamp", "dp.deposit_update_timestamp",
+        "description", "dp.description",
+        "location", "db.name",
+        "storageInBytes", "dp.storage_in_bytes",
+        "deleted", "dp.deleted");
+
+    private static final String joins = " left join depositor dr on dr.id = dp.depositor_id"
+        + " left join deposit_state ds on ds.id = dp.deposit_state_id"
+        + " left join deposit_box db on db.id = dp.location_id";
+
+    private final SessionFactory sessionFactory;
+    private final DepositDictionary dictionary;
+
+    public CsvCopyExporter(SessionFactory sessionFactory, DepositDictionary dictionary) {
+        this.sessionFactory = sessionFactory;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * The export runs when the response is written, after the unit of work of the request has ended, so it uses a session of its own.
+     */
+    public StreamingOutput export(DepositFilter filter, List<String> fields, boolean includeArchive) {
+        List<String> reportFields = fields.isEmpty() ? DepositProperties.reportColumns : fields;
+        String query = select(reportFields, "deposit_properties", filter);
+        if (includeArchive) {
+            // A deposit that is registered again after its record was archived is in both tables; only the record in the hot table is reported
+            query += " union all " + select(reportFields, "deposit_properties_archive", filter)
+                + (filter.isEmpty() ? " where " : " and ") + "not exists (select 1 from deposit_properties hot where hot.deposit_id = dp.deposit_id)";
+        }
+        String line = reportFields.stream()
+            .map(CsvCopyExporter::field)
+            .collect(Collectors.joining(" || ',' || "));
+        String copy = "copy (select " + line + " from (" + query + ") r) to stdout";
+        byte[] header = (String.join(",", reportFields) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        return outputStream -> {
+            try (Session session = sessionFactory.openSession()) {
+                Transaction transaction = session.beginTransaction();
+                try {
+                    session.doWork(connection -> {
+                        try (Statement statement = connection.createStatement()) {
+                            statement.execute("set local standard_conforming_strings = on");
+                            // Timestamps are stored in the time zone of the service; show them with its offset, as Hibernate reads them
+                            statement.execute("set local time zone " + literal(ZoneId.systemDefault().getId()));
+                        }
+                        try {
+                            connection.unwrap(PGConnection.class).getCopyAPI().copyOut(copy, unescaped(headerBeforeFirstRow(outputStream, header)));
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+                finally {
+                    // Nothing has been written to the database
+                    transaction.rollback();
+                }
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+    }
+
+    // COPY writes its header even if there are no rows, so the header is written here instead, as soon as the first row arrives
+    private static OutputStream headerBeforeFirstRow(OutputStream outputStream, byte[] header) {
+        return new FilterOutputStream(outputStream) {
+            private boolean started;
+
+            @Override
+            public void write(int b) throws IOException {
+                start();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return;
+                start();
+                out.write(b, off, len);
+            }
+
+            private void start() throws IOException {
+                if (!started) {
+                    started = true;
+                    out.write(header);
+                }
+            }
+        };
+    }
+
+    // Undoes the escapes of COPY's text format; the query only returns one column, so a line of the output is a line of the report
+    private static OutputStream unescaped(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            private boolean escaped;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (escaped) {
+                    escaped = false;
+                    out.write(unescape(b));
+                }
+                else if (b == '\\') {
+                    escaped = true;
+                }
+                else {
+                    out.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                byte[] unescaped = new byte[len];
+                int n = 0;
+                for (int i = off; i < off + len; i++) {
+                    if (escaped) {
+                        escaped = false;
+                        unescaped[n++] = (byte) unescape(b[i]);
+                    }
+                    else if (b[i] == '\\') {
+                        escaped = true;
+                    }
+                    else {
+                        unescaped[n++] = b[i];
+                    }
+                }
+                out.write(unescaped, 0, n);
+            }
+        };
+    }
+
+    private static int unescape(int b) {
+        switch (b) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'v':
+                return 0x0b;
+            default:
+                // The backslash itself and the delimiter
+                return b;
+        }
+    }
+
+    // Jackson's default quoting: a value is quoted if it is longer than 24 characters, or contains a character below '-' (which includes the separator, the quote, line breaks and
+    // spaces) or a backslash. Null and empty values are written as empty fields, and numbers and booleans are never quoted.
+    private static String field(String field) {
+        String value = "r.\"" + field + "\"";
+        switch (field) {
+            case "deleted":
+            case "storageInBytes":
+                return value;
+            default:
+                return "case when char_length(" + value + ") > 24 or " + value + " ~ '[\\x01-\\x2c\\\\]' then '\"' || replace(" + value + ", '\"', '\"\"') || '\"' "
+                    + "else coalesce(" + value + ", '') end";
+        }
+    }
+
+    private String select(List<String> fields, String table, DepositFilter filter) {
+        String select = fields.stream()
+            .map(field -> expression(field) + " as \"" + field + "\"")
+            .collect(Collectors.joining(", ", "select ", " from " + table + " dp" + joins));
+        return filter.isEmpty() ? select : select + " where " + where(filter);
+    }
+
+    private static String expression(String field) {
+        String column = columns.get(field);
+        switch (field) {
+            case "depositCreationTimestamp":
+            case "depositUpdateTimestamp":
+                // As DateTimeFormatter.ISO_OFFSET_DATE_TIME: the fraction without trailing zeros (none at all for whole seconds), and Z for a zero offset
+                String timestamp = "(" + column + " at time zone current_setting('TimeZone'))";
+                String offset = "to_char(" + timestamp + ", 'TZH:TZM')";
+                return "regexp_replace(to_char(" + timestamp + ", 'YYYY-MM-DD\"T\"HH24:MI:SS.US'), '\\.?0+$', '')"
+                    + " || case when " + offset + " = '+00:00' then 'Z' else " + offset + " end";
+            case "deleted":
+                return "case when " + column + " then 'true' else 'false' end";
+            case "storageInBytes":
+                return column + "::text";
+            default:
+                return column;
+        }
+    }
+
+    // The same conditions as the JPQL of DepositFilter, on the columns instead of the attributes
+    private String where(DepositFilter filter) {
+        List<String> conjuncts = new ArrayList<>();
+        for (DepositFilter.Criterion criterion : filter.getCriteria()) {
+            List<String> disjuncts = new ArrayList<>();
+            for (Object value : filter.getValues(criterion)) {
+                disjuncts.add(condition(criterion, value));
+            }
+            conjuncts.add("(" + String.join(" or ", disjuncts) + ")");
+        }
+        return String.join(" and ", conjuncts);
+    }
+
+    private String condition(DepositFilter.Criterion criterion, Object value) {
+        switch (criterion) {
+            case DEPOSIT_ID:
+                return "dp.deposit_id = " + literal(value);
+            case USER:
+                return "dp.depositor_id = " + dictionary.idOf(DepositDictionary.Kind.DEPOSITOR, value.toString());
+            case STATE:
+                return "dp.deposit_state_id = " + dictionary.idOf(DepositDictionary.Kind.DEPOSIT_STATE, value.toString());
+            case DELETED:
+                return "dp.deleted = " + value;
+            case Q:
+                return "(" + like("dp.description", value) + " or " + like("dp.bag_name", value) + " or " + like("dp.deposit_id", value) + ")";
+            case DESCRIPTION_CONTAINS:
+                return like("dp.description", value);
+            case BAG_NAME_PREFIX:
+                return like("dp.bag_name", value);
+            case START_DATE:
+                return "dp.deposit_creation_timestamp > " + timestamp(value);
+            case END_DATE:
+                return "dp.deposit_creation_timestamp < " + timestamp(value);
+            case DEPOSITOR:
+                return "dp.depositor_id = " + dictionary.idOf(DepositDictionary.Kind.DEPOSITOR, value.toString());
+            case BAG_NAME:
+                return "dp.bag_name = " + literal(value);
+            case DEPOSIT_STATE:
+                return "dp.deposit_state_id = " + dictionary.idOf(DepositDictionary.Kind.DEPOSIT_STATE, value.toString());
+            case DESCRIPTION:
+                return "dp.description = " + literal(value);
+            case LOCATION:
+                return "dp.location_id = " + dictionary.idOf(DepositDictionary.Kind.DEPOSIT_BOX, value.toString());
+            default:
+                throw new IllegalStateException("Unhandled criterion: " + criterion);
+        }
+    }
+
+    private static String like(String column, Object pattern) {
+        return "lower(" + column + ") like " + literal(pattern) + " escape '\\'";
+    }
+
+    // Written the way Hibernate writes them: as a timestamp in the time zone of the JVM
+    private static String timestamp(Object value) {
+        return "timestamp " + literal(Timestamp.from(((OffsetDateTime) value).toInstant()));
+    }
+
+    // DepositFilter has rejected NUL characters, the only ones that cannot be written in a PostgreSQL string literal
+    private static String literal(Object value) {
+        return "'" + value.toString().replace("'", "''") + "'";
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.core.service.TextTruncation;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.context.internal.ManagedSessionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Maps the depositors, deposit states and deposit box locations to the integer keys under which <code>deposit_properties</code> stores them. Each kind of value has a small lookup
+ * table of its own; the mappings are cached, as there are only a few boxes and states and not many more depositors. Entries are only ever added, so a cached key never goes stale.
+ *
+ * The dictionary is loaded at startup. A value that is not in the cache, because it is new or was added by another instance, is looked up or added on the connection of the
+ * unit of work of the caller, in its transaction.
+ */
+public class DepositDictionary {
+    private static final Logger log = LoggerFactory.getLogger(DepositDictionary.class);
+
+    // Key used in queries for a value that is not in the dictionary; it matches no record
+    public static final int unknownId = -1;
+
+    private static volatile DepositDictionary instance;
+
+    public enum Kind {
+        DEPOSITOR("depositor", "depositor", "depositor_id", 255),
+        DEPOSIT_STATE("deposit_state", "deposit_state", "deposit_state_id", 255),
+        DEPOSIT_BOX("deposit_box", "location", "location_id", TextTruncation.maxDirectoryLength);
+
+        private final String table;
+        private final String legacyColumn;
+        private final String column;
+        private final int length;
+
+        Kind(String table, String legacyColumn, String column, int length) {
+            this.table = table;
+            this.legacyColumn = legacyColumn;
+            this.column = column;
+            this.length = length;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * The column of <code>deposit_properties</code> that held the value itself before it was replaced by a key.
+         */
+        public String getLegacyColumn() {
+            return legacyColumn;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final SessionFactory sessionFactory;
+    private final Map<Kind, Map<String, Integer>> ids = new ConcurrentHashMap<>();
+    private final Map<Kind, Map<Integer, String>> values = new ConcurrentHashMap<>();
+    // Values added by transactions that have not completed yet, as "<table>:<value>"
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    public DepositDictionary(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        for (Kind kind : Kind.values()) {
+            ids.put(kind, new ConcurrentHashMap<>());
+            values.put(kind, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Makes the dictionary available to the attribute converters of the entities, which Hibernate instantiates itself.
+     */
+    public static DepositDictionary install(DepositDictionary dictionary) {
+        instance = dictionary;
+        return dictionary;
+    }
+
+    static DepositDictionary getInstance() {
+        if (instance == null)
+            throw new IllegalStateException("No deposit dictionary has been installed");
+        return instance;
+    }
+
+    /**
+     * Reads all entries into the cache. Called at startup, so that only values added since then have to be looked up.
+     */
+    public void load() {
+        withSession(session -> session.doReturningWork(connection -> {
+            for (Kind kind : Kind.values()) {
+                try (Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery("select id, name from " + kind.getTable())) {
+                    while (resultSet.next()) {
+                        cache(kind, resultSet.getInt(1), resultSet.getString(2));
+                    }
+                }
+            }
+            return null;
+        }));
+        log.info("Deposit dictionary loaded: {} depositors, {} states, {} locations",
+            ids.get(Kind.DEPOSITOR).size(), ids.get(Kind.DEPOSIT_STATE).size(), ids.get(Kind.DEPOSIT_BOX).size());
+    }
+
+    /**
+     * The key of a value, without adding it; {@link #unknownId} if the value is not in the dictionary. Used for queries, which should not add the values they look for.
+     */
+    public Integer idOf(Kind kind, String value) {
+        if (value == null)
+            return null;
+        Integer id = ids.get(kind).get(value);
+        if (id != null)
+            return id;
+        return withSession(session -> session.doReturningWork(connection -> select(connection, kind, value))).orElse(unknownId);
+    }
+
+    /**
+     * The key of a value, adding the value to the dictionary if it is new. Used for writes.
+     */
+    public Integer register(Kind kind, String value) {
+        if (value == null)
+            return null;
+        Integer id = ids.get(kind).get(value);
+        if (id != null)
+            return id;
+        return withSession(session -> session.doReturningWork(connection -> register(connection, session.getTransaction(), kind, value)));
+    }
+
+    /**
+     * As {@link #register(Kind, String)}, for a caller that is doing work on the connection of the current session.
+     */
+    public Integer register(Connection connection, Kind kind, String value) throws SQLException {
+        if (value == null)
+            return null;
+        Integer id = ids.get(kind).get(value);
+        if (id != null)
+            return id;
+        return register(connection, sessionFactory.getCurrentSession().getTransaction(), kind, value);
+    }
+
+    /**
+     * Adds the depositor, state and location of the record, so that it can be written.
+     */
+    public void register(DepositProperties dp) {
+        register(Kind.DEPOSITOR, dp.getDepositor());
+        register(Kind.DEPOSIT_STATE, dp.getDepositState());
+        register(Kind.DEPOSIT_BOX, dp.getLocation());
+    }
+
+    public String valueOf(Kind kind, Integer id) {
+        if (id == null)
+            return null;
+        String value = values.get(kind).get(id);
+        if (value != null)
+            return value;
+        // Added by another instance
+        return withSession(session -> session.doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("select name from " + kind.getTable() + " where id = ?")) {
+                statement.setInt(1, id);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next())
+                        throw new IllegalStateException("No " + kind.getTable() + " with id " + id);
+                    String name = resultSet.getString(1);
+                    if (!pending.contains(kind.getTable() + ":" + name))
+                        cache(kind, id, name);
+                    return name;
+                }
+            }
+        }));
+    }
+
+    // The value is added in the transaction of the caller, under a savepoint, so that a value added by another instance in the meantime does not abort that transaction. The key
+    // is only cached once the transaction has been committed; until then it is pending, and is not cached when it is found again.
+    private Integer register(Connection connection, Transaction transaction, Kind kind, String value) throws SQLException {
+        Optional<Integer> found = select(connection, kind, value);
+        if (found.isPresent())
+            return found.get();
+
+        Savepoint savepoint = connection.setSavepoint();
+        try (PreparedStatement statement = connection.prepareStatement("insert into " + kind.getTable() + " (name) values (?)")) {
+            statement.setString(1, value);
+            statement.executeUpdate();
+            connection.releaseSavepoint(savepoint);
+        }
+        catch (SQLException e) {
+            // Most likely another instance added the same value in the meantime; if not, the select below finds nothing
+            connection.rollback(savepoint);
+            log.debug("Could not add {} '{}': {}", kind.getTable(), value, e.getMessage());
+            return select(connection, kind, value).orElseThrow(() -> new IllegalStateException("Could not add " + kind.getTable() + " '" + value + "'"));
+        }
+
+        String key = kind.getTable() + ":" + value;
+        pending.add(key);
+        Integer id = select(connection, kind, value).orElseThrow(() -> new IllegalStateException("Could not add " + kind.getTable() + " '" + value + "'"));
+        transaction.registerSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                pending.remove(key);
+                if (status == Status.STATUS_COMMITTED)
+                    cache(kind, id, value);
+            }
+        });
+        return id;
+    }
+
+    private Optional<Integer> select(Connection connection, Kind kind, String value) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("select id from " + kind.getTable() + " where name = ?")) {
+            statement.setString(1, value);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next())
+                    return Optional.empty();
+                if (!pending.contains(kind.getTable() + ":" + value))
+                    cache(kind, resultSet.getInt(1), value);
+                return Optional.of(resultSet.getInt(1));
+            }
+        }
+    }
+
+    private void cache(Kind kind, int id, String value) {
+        ids.get(kind).put(value, id);
+        values.get(kind).put(id, value);
+    }
+
+    // A miss is resolved on the connection of the unit of work that the caller is in, if any. Taking a second connection from the pool while holding one would stall every request
+    // once the pool is exhausted.
+    private <T> T withSession(Function<Session, T> work) {
+        if (ManagedSessionContext.hasBind(sessionFactory)) {
+            Session session = sessionFactory.getCurrentSession();
+            if (session.getTransaction().isActive())
+                return work.apply(session);
+        }
+        try (Session session = sessionFactory.openSession()) {
+            Transaction transaction = session.beginTransaction();
+            try {
+                T result = work.apply(session);
+                transaction.commit();
+                return result;
+            }
+            catch (RuntimeException e) {
+                transaction.rollback();
+                throw e;
+            }
+        }
+    }
+
+}
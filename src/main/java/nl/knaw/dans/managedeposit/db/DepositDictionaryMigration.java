@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import io.dropwizard.lifecycle.Managed;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Creates the lookup tables of the {@link DepositDictionary} and converts records written by earlier versions, which kept the depositor, state and location in the record itself.
+ * <code>hbm2ddl</code> has already tried to add the key columns by the time this runs. It cannot add the mandatory depositor key to a table that already has records, so missing key
+ * columns are added here as nullable; the values are moved into the lookup tables, the keys are filled in, the old columns are dropped, and the depositor key is made mandatory.
+ * Finally, the dictionary is loaded. It must run before anything reads or writes deposit records.
+ */
+public class DepositDictionaryMigration implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(DepositDictionaryMigration.class);
+
+    private static final List<String> recordTables = List.of("deposit_properties", "deposit_properties_archive");
+
+    private final SessionFactory sessionFactory;
+    private final DepositDictionary dictionary;
+    private final boolean postgreSQL;
+
+    public DepositDictionaryMigration(SessionFactory sessionFactory, DepositDictionary dictionary, boolean postgreSQL) {
+        this.sessionFactory = sessionFactory;
+        this.dictionary = dictionary;
+        this.postgreSQL = postgreSQL;
+    }
+
+    @Override
+    public void start() {
+        try (Session session = sessionFactory.openSession()) {
+            Transaction transaction = session.beginTransaction();
+            try {
+                session.doWork(this::migrate);
+                transaction.commit();
+            }
+            catch (RuntimeException e) {
+                transaction.rollback();
+                throw e;
+            }
+        }
+        dictionary.load();
+    }
+
+    private void migrate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (postgreSQL) {
+                // Other instances starting at the same time wait until the records have been converted
+                statement.execute("lock table " + String.join(", ", recordTables) + " in share row exclusive mode");
+            }
+            for (DepositDictionary.Kind kind : DepositDictionary.Kind.values()) {
+                statement.execute("create table if not exists " + kind.getTable()
+                    + " (id integer generated by default as identity primary key, name varchar(" + kind.getLength() + ") not null unique)");
+            }
+
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (String table : recordTables) {
+                for (DepositDictionary.Kind kind : DepositDictionary.Kind.values()) {
+                    if (!hasColumn(metaData, table, kind.getColumn())) {
+                        statement.execute("alter table " + table + " add column " + kind.getColumn() + " integer");
+                    }
+                    if (hasColumn(metaData, table, kind.getLegacyColumn())) {
+                        statement.executeUpdate("insert into " + kind.getTable() + " (name) select distinct " + kind.getLegacyColumn() + " from " + table
+                            + " where " + kind.getLegacyColumn() + " is not null and " + kind.getLegacyColumn() + " not in (select name from " + kind.getTable() + ")");
+                        int converted = statement.executeUpdate("update " + table + " set " + kind.getColumn()
+                            + " = (select id from " + kind.getTable() + " where name = " + table + "." + kind.getLegacyColumn() + ")");
+                        statement.execute("alter table " + table + " drop column " + kind.getLegacyColumn());
+                        log.info("Moved {} of {} records to {}", kind.getLegacyColumn(), converted, kind.getTable());
+                    }
+                    if (!hasForeignKey(metaData, table, kind.getColumn())) {
+                        statement.execute("alter table " + table + " add constraint " + table + "_" + kind.getColumn() + "_fk foreign key (" + kind.getColumn() + ") references "
+                            + kind.getTable() + " (id)");
+                    }
+                }
+                // Only now that every record has a key
+                statement.execute("alter table " + table + " alter column " + DepositDictionary.Kind.DEPOSITOR.getColumn() + " set not null");
+            }
+        }
+    }
+
+    private static boolean hasColumn(DatabaseMetaData metaData, String table, String column) throws SQLException {
+        try (ResultSet columns = metaData.getColumns(null, null, identifier(metaData, table), identifier(metaData, column))) {
+            return columns.next();
+        }
+    }
+
+    private static boolean hasForeignKey(DatabaseMetaData metaData, String table, String column) throws SQLException {
+        try (ResultSet keys = metaData.getImportedKeys(null, null, identifier(metaData, table))) {
+            while (keys.next()) {
+                if (keys.getString("FKCOLUMN_NAME").equalsIgnoreCase(column))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // Unquoted identifiers are folded to upper case by HSQLDB and to lower case by PostgreSQL
+    private static String identifier(DatabaseMetaData metaData, String name) throws SQLException {
+        return metaData.storesUpperCaseIdentifiers() ? name.toUpperCase(Locale.ROOT) : name;
+    }
+
+    @Override
+    public void stop() {
+    }
+}
@@ -16,46 +16,66 @@
 package nl.knaw.dans.managedeposit.db;
 
 import io.dropwizard.hibernate.AbstractDAO;
+import nl.knaw.dans.managedeposit.core.DepositFilter;
 import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.core.DepositPropertiesArchive;
+import nl.knaw.dans.managedeposit.core.service.TextTruncation;
+import org.hibernate.Cache;
+import org.hibernate.CacheMode;
 import org.hibernate.SessionFactory;
 import org.hibernate.query.Query;
+import org.postgresql.PGConnection;
 
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaDelete;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.CriteriaUpdate;
-import javax.persistence.criteria.Predicate;
-import javax.persistence.criteria.Root;
+import javax.persistence.Tuple;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import java.io.IOException;
+import java.io.StringReader;
 import java.nio.file.Path;
-import java.time.LocalDate;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.OffsetDateTime;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @SuppressWarnings("resource")
 public class DepositPropertiesDAO extends AbstractDAO<DepositProperties> {
+    private final DepositDictionary dictionary;
 
-    public DepositPropertiesDAO(SessionFactory sessionFactory) {
+    public DepositPropertiesDAO(SessionFactory sessionFactory, DepositDictionary dictionary) {
         super(sessionFactory);
+        this.dictionary = dictionary;
     }
 
     public Optional<DepositProperties> findById(String depositId) {
         return Optional.ofNullable(get(depositId));
     }
 
+    // Every write registers the depositor, state and location of the record first, so that their keys exist when the record is flushed
+
     public DepositProperties create(DepositProperties dp) {
+        dictionary.register(dp);
         return persist(dp);
     }
 
     public DepositProperties save(DepositProperties dp) {
+        dictionary.register(dp);
         return persist(dp);
     }
 
     public void merge(DepositProperties dp) {
+        dictionary.register(dp);
         currentSession().merge(dp);
     }
 
@@ -63,124 +83,354 @@ public class DepositPropertiesDAO extends AbstractDAO<DepositProperties> {
         currentSession().delete(dp);
     }
 
+    /**
+     * Runs the action once the current transaction has been committed, and not at all if it is rolled back. The in-memory index and statistics are only updated this way, so that
+     * they never show a change that the database does not have.
+     */
+    public void afterCommit(Runnable action) {
+        currentSession().getTransaction().registerSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    action.run();
+            }
+        });
+    }
+
     public List<DepositProperties> findAll() {
         return currentSession().createQuery("from DepositProperties", DepositProperties.class).list();
     }
 
-    public List<DepositProperties> findSelection(Map<String, List<String>> queryParameters) {
-        CriteriaBuilder criteriaBuilder = currentSession().getCriteriaBuilder();
+    /**
+     * Passes all records to the consumer one by one, without keeping them in the session.
+     */
+    public void forEach(Consumer<DepositProperties> consumer) {
+        var query = currentSession().createQuery("from DepositProperties", DepositProperties.class)
+            .setReadOnly(true)
+            .setCacheMode(CacheMode.IGNORE)
+            .setFetchSize(1000);
+        try (var stream = query.stream()) {
+            stream.forEach(dp -> {
+                consumer.accept(dp);
+                currentSession().detach(dp);
+            });
+        }
+    }
 
-        if (queryParameters.size() == 0)
+    public List<DepositProperties> findSelection(DepositFilter filter) {
+        if (filter.isEmpty())
             return findAll();
 
-        CriteriaQuery<DepositProperties> criteriaQuery = criteriaBuilder.createQuery(DepositProperties.class);
-        Root<DepositProperties> root = criteriaQuery.from(DepositProperties.class);
-        Predicate predicate = buildQueryCriteria(queryParameters, criteriaBuilder, root);
-        criteriaQuery.select(root).where(predicate);
-        Query<DepositProperties> query = currentSession().createQuery(criteriaQuery);
+        Query<DepositProperties> query = createFilteredQuery("from DepositProperties " + DepositFilter.alias, filter, DepositProperties.class);
+        // Only filtered selections are cached; caching the unfiltered report would flush the entity cache
+        query.setCacheable(true);
         return query.getResultList();
     }
 
-    public Optional<Integer> deleteSelection(Map<String, List<String>> queryParameters) {
-        var criteriaBuilder = currentSession().getCriteriaBuilder();
-        if (queryParameters.size() == 0)                   // Note: all records will be deleted (accidentally) without any specified query parameter
+    public Optional<DepositProperties> findArchivedById(String depositId) {
+        return Optional.ofNullable(currentSession().get(DepositPropertiesArchive.class, depositId))
+            .map(DepositPropertiesArchive::toDepositProperties);
+    }
+
+    public List<DepositProperties> findArchivedSelection(DepositFilter filter) {
+        List<DepositProperties> result = new ArrayList<>();
+        for (DepositPropertiesArchive archived : createFilteredQuery("from DepositPropertiesArchive " + DepositFilter.alias, filter, DepositPropertiesArchive.class).getResultList()) {
+            result.add(archived.toDepositProperties());
+        }
+        return result;
+    }
+
+    /**
+     * Number of deposits and the sum of their known storage sizes per location, state and deleted flag.
+     */
+    public List<Object[]> countByLocationStateDeleted() {
+        return currentSession().createQuery("select e.location, e.depositState, e.deleted, count(e), sum(case when e.storageInBytes > 0 then e.storageInBytes else 0 end) "
+                + "from DepositProperties e group by e.location, e.depositState, e.deleted", Object[].class)
+            .getResultList();
+    }
+
+    /**
+     * The deposit id, deleted flag and update timestamp of every record in the given location.
+     */
+    public List<Object[]> findUpdatesByLocation(String location) {
+        return currentSession().createQuery("select e.depositId, e.deleted, e.depositUpdateTimestamp from DepositProperties e where e.location = :location", Object[].class)
+            .setParameter("location", location)
+            .getResultList();
+    }
+
+    /**
+     * Reads the records with the given ids, with one IN query per chunk of ids. Ids that are not found are absent from the result.
+     */
+    public List<DepositProperties> findByIds(List<String> depositIds, int chunkSize) {
+        return findByIds("DepositProperties", DepositProperties.class, depositIds, chunkSize);
+    }
+
+    public List<DepositProperties> findArchivedByIds(List<String> depositIds, int chunkSize) {
+        List<DepositProperties> result = new ArrayList<>();
+        for (DepositPropertiesArchive archived : findByIds("DepositPropertiesArchive", DepositPropertiesArchive.class, depositIds, chunkSize)) {
+            result.add(archived.toDepositProperties());
+        }
+        return result;
+    }
+
+    private <T> List<T> findByIds(String entityName, Class<T> entityClass, List<String> depositIds, int chunkSize) {
+        List<T> result = new ArrayList<>();
+        for (int from = 0; from < depositIds.size(); from += chunkSize) {
+            result.addAll(currentSession().createQuery("from " + entityName + " e where e.depositId in (:ids)", entityClass)
+                .setParameterList("ids", depositIds.subList(from, Math.min(from + chunkSize, depositIds.size())))
+                .getResultList());
+        }
+        return result;
+    }
+
+    /**
+     * Reads only the given columns of the selected records; each record is returned as a map from column name to value, in the order of <code>fields</code>.
+     */
+    public List<Map<String, Object>> findSelection(DepositFilter filter, List<String> fields) {
+        return findProjection("DepositProperties", filter, fields, !filter.isEmpty());
+    }
+
+    public List<Map<String, Object>> findArchivedSelection(DepositFilter filter, List<String> fields) {
+        return findProjection("DepositPropertiesArchive", filter, fields, false);
+    }
+
+    // The field names have been checked against DepositProperties.reportColumns by the caller
+    private List<Map<String, Object>> findProjection(String entityName, DepositFilter filter, List<String> fields, boolean cacheable) {
+        String select = fields.stream()
+            .map(field -> DepositFilter.alias + "." + field + " as " + field)
+            .collect(Collectors.joining(", ", "select ", " from " + entityName + " " + DepositFilter.alias));
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Tuple tuple : createFilteredQuery(select, filter, Tuple.class).setCacheable(cacheable).getResultList()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (String field : fields) {
+                row.put(field, tuple.get(field));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * The ids of the records that {@link #deleteSelection(DepositFilter)} would delete from <code>deposit_properties</code>.
+     */
+    public List<String> findIdSelection(DepositFilter filter) {
+        if (filter.isEmpty())
+            return List.of();
+        return createFilteredQuery("select " + DepositFilter.alias + ".depositId from DepositProperties " + DepositFilter.alias, filter, String.class).getResultList();
+    }
+
+    public Optional<Integer> deleteSelection(DepositFilter filter) {
+        if (filter.isEmpty())                   // Note: all records will be deleted (accidentally) without any specified query parameter
             return Optional.of(0);
 
-        CriteriaDelete<DepositProperties> deleteQuery = criteriaBuilder.createCriteriaDelete(DepositProperties.class);
-        Root<DepositProperties> root = deleteQuery.from(DepositProperties.class);
-
-        Predicate predicate = buildQueryCriteria(queryParameters, criteriaBuilder, root);
-
-        deleteQuery.where(predicate);
-        var query = currentSession().createQuery(deleteQuery);
-        return Optional.of(query.executeUpdate());
-    }
-
-    private Predicate buildQueryCriteria(Map<String, List<String>> queryParameters, CriteriaBuilder criteriaBuilder, Root<DepositProperties> root) {
-        List<Predicate> predicates = new ArrayList<>();
-        Predicate predicate;
-
-        for (String key : queryParameters.keySet()) {
-            List<String> values = queryParameters.get(key);
-            String parameter = key.toLowerCase();
-            //javax.persistence.criteria
-            Predicate orPredicateItem;
-            List<Predicate> orPredicatesList = new ArrayList<>();
-            for (String value : values) {
-                switch (parameter) {
-                    case "depositid":
-                        orPredicateItem = criteriaBuilder.equal(root.get("depositId"), value);
-                        break;
-
-                    case "user":
-                        orPredicateItem = criteriaBuilder.equal(root.get("depositor"), value);
-                        break;
-
-                    case "deleted":
-                        if (Boolean.parseBoolean(value))
-                            orPredicateItem = criteriaBuilder.isTrue(root.get("deleted"));
-                        else
-                            orPredicateItem = criteriaBuilder.isFalse(root.get("deleted"));
-                        break;
-
-                    case "state":
-                        orPredicateItem = criteriaBuilder.equal(root.get("depositState"), value);
-                        break;
-
-                    case "startdate":
-                    case "enddate":
-                        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-                        LocalDate date = LocalDate.parse(value, formatter);
-                        var asked_date = OffsetDateTime.of(date.atStartOfDay(), ZoneOffset.UTC);
-
-                        if (parameter.equals("startdate"))
-                            orPredicateItem = criteriaBuilder.greaterThan(root.get("depositCreationTimestamp"), asked_date);
-                        else
-                            orPredicateItem = criteriaBuilder.lessThan(root.get("depositCreationTimestamp"), asked_date);
-                        break;
-
-                    default:
-                        orPredicateItem = criteriaBuilder.equal(root.get(key), value);
+        int deletedNumber = bind(currentSession().createQuery("delete from DepositProperties " + DepositFilter.alias + filter.getWhereClause()), filter).executeUpdate();
+        // Cleaning the database includes the archived records
+        deletedNumber += bind(currentSession().createQuery("delete from DepositPropertiesArchive " + DepositFilter.alias + filter.getWhereClause()), filter).executeUpdate();
+        return Optional.of(deletedNumber);
+    }
+
+    private <T> Query<T> createFilteredQuery(String queryString, DepositFilter filter, Class<T> resultClass) {
+        return bind(currentSession().createQuery(queryString + filter.getWhereClause(), resultClass), filter);
+    }
+
+    private static <Q extends Query<?>> Q bind(Q query, DepositFilter filter) {
+        filter.getParameters().forEach(query::setParameter);
+        return query;
+    }
+
+    // Columns written by the bulk import; deposit_id comes last so that the update and insert statements can share their parameters
+    private static final String importColumns =
+        "depositor_id, bag_name, deposit_state_id, deposit_creation_timestamp, deposit_update_timestamp, description, location_id, storage_in_bytes, deleted, deposit_id";
+
+    /**
+     * Loads the records into a temporary staging table with COPY FROM STDIN and merges them from there into <code>deposit_properties</code>; PostgreSQL only.
+     */
+    public void copyImport(Collection<DepositProperties> records) {
+        currentSession().doWork(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create temporary table if not exists deposit_properties_import (like deposit_properties including defaults) on commit delete rows");
+            }
+
+            StringBuilder csv = new StringBuilder();
+            for (DepositProperties dp : records) {
+                appendCsvRow(connection, csv, dp);
+            }
+            try {
+                connection.unwrap(PGConnection.class).getCopyAPI()
+                    .copyIn("copy deposit_properties_import (" + importColumns + ") from stdin with (format csv)", new StringReader(csv.toString()));
+            }
+            catch (IOException e) {
+                throw new SQLException("Copying the records to the staging table failed", e);
+            }
+
+            String updates = Arrays.stream(importColumns.split(", "))
+                .filter(column -> !column.equals("deposit_id"))
+                .map(column -> column + " = excluded." + column)
+                .collect(Collectors.joining(", "));
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("insert into deposit_properties (" + importColumns + ") select " + importColumns + " from deposit_properties_import "
+                    + "on conflict (deposit_id) do update set " + updates);
+            }
+        });
+        evictCaches();
+    }
+
+    /**
+     * Updates the existing records and inserts the others, each with a single JDBC batch; for databases without COPY.
+     */
+    public void batchImport(Collection<DepositProperties> records) {
+        currentSession().doWork(connection -> {
+            List<DepositProperties> missing = new ArrayList<>();
+            try (PreparedStatement update = connection.prepareStatement("update deposit_properties set depositor_id = ?, bag_name = ?, deposit_state_id = ?, deposit_creation_timestamp = ?, "
+                + "deposit_update_timestamp = ?, description = ?, location_id = ?, storage_in_bytes = ?, deleted = ? where deposit_id = ?")) {
+                for (DepositProperties dp : records) {
+                    setImportParameters(connection, update, dp);
+                    update.addBatch();
+                }
+                int[] updateCounts = update.executeBatch();
+                int i = 0;
+                for (DepositProperties dp : records) {
+                    if (updateCounts[i++] == 0)
+                        missing.add(dp);
                 }
+            }
 
-                orPredicatesList.add(orPredicateItem);
+            if (!missing.isEmpty()) {
+                try (PreparedStatement insert = connection.prepareStatement("insert into deposit_properties (" + importColumns + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                    for (DepositProperties dp : missing) {
+                        setImportParameters(connection, insert, dp);
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
             }
+        });
+        evictCaches();
+    }
+
+    // Timestamps are written the way Hibernate writes them: as a timestamp in the time zone of the JVM. New dictionary values are added on the connection that is being worked on.
+    private void setImportParameters(Connection connection, PreparedStatement statement, DepositProperties dp) throws SQLException {
+        statement.setObject(1, dictionary.register(connection, DepositDictionary.Kind.DEPOSITOR, dp.getDepositor()), Types.INTEGER);
+        statement.setString(2, dp.getBagName());
+        statement.setObject(3, dictionary.register(connection, DepositDictionary.Kind.DEPOSIT_STATE, dp.getDepositState()), Types.INTEGER);
+        statement.setTimestamp(4, toTimestamp(dp.getDepositCreationTimestamp()));
+        statement.setTimestamp(5, toTimestamp(dp.getDepositUpdateTimestamp()));
+        statement.setString(6, dp.getDescription());
+        statement.setObject(7, dictionary.register(connection, DepositDictionary.Kind.DEPOSIT_BOX, dp.getLocation()), Types.INTEGER);
+        statement.setLong(8, dp.getStorageInBytes());
+        statement.setBoolean(9, dp.isDeleted());
+        statement.setString(10, dp.getDepositId());
+    }
 
-            orPredicateItem = criteriaBuilder.or(orPredicatesList.toArray(new Predicate[0]));
-            predicates.add(orPredicateItem);
+    private void appendCsvRow(Connection connection, StringBuilder csv, DepositProperties dp) throws SQLException {
+        Object[] values = { dictionary.register(connection, DepositDictionary.Kind.DEPOSITOR, dp.getDepositor()), dp.getBagName(),
+            dictionary.register(connection, DepositDictionary.Kind.DEPOSIT_STATE, dp.getDepositState()), toTimestamp(dp.getDepositCreationTimestamp()),
+            toTimestamp(dp.getDepositUpdateTimestamp()), dp.getDescription(), dictionary.register(connection, DepositDictionary.Kind.DEPOSIT_BOX, dp.getLocation()), dp.getStorageInBytes(),
+            dp.isDeleted(), dp.getDepositId() };
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                csv.append(',');
+            // An unquoted empty value is NULL; anything else is quoted, so that an empty string stays an empty string
+            if (values[i] != null)
+                csv.append('"').append(values[i].toString().replace("\"", "\"\"")).append('"');
         }
+        csv.append('\n');
+    }
 
-        predicate = criteriaBuilder.and(predicates.toArray(new Predicate[0]));
+    private static Timestamp toTimestamp(OffsetDateTime dateTime) {
+        return dateTime == null ? null : Timestamp.from(dateTime.toInstant());
+    }
 
-        return predicate;
+    // The import bypasses Hibernate, so cached records and reports may be stale
+    private void evictCaches() {
+        Cache cache = currentSession().getSessionFactory().getCache();
+        cache.evictEntityData(DepositProperties.class);
+        cache.evictQueryRegions();
     }
 
+    // The single-record updates below go through the entity instead of a bulk CriteriaUpdate: Hibernate evicts the whole second-level cache region on every bulk update, whereas
+    // an entity update only replaces the cached entry of that record.
+
     public Optional<Integer> updateDeleteFlag(String depositId, boolean deleted) {
-        CriteriaBuilder criteriaBuilder = currentSession().getCriteriaBuilder();
-        CriteriaUpdate<DepositProperties> criteriaUpdate = criteriaBuilder.createCriteriaUpdate(DepositProperties.class);
-        Root<DepositProperties> root = criteriaUpdate.from(DepositProperties.class);
+        return update(depositId, dp -> dp.setDeleted(deleted));
+    }
+
+    public Optional<Integer> updateDepositLocation(String depositId, Path currentParentPath) {
+        return update(depositId, dp -> {
+            dp.setLocation(TextTruncation.stripBegin(currentParentPath.toString(), TextTruncation.maxDirectoryLength));
+            // A deposit that appears in a new location is no longer deleted
+            dp.setDeleted(false);
+        });
+    }
 
-        Predicate predicate = buildQueryCriteria(Map.of("depositId", List.of(depositId)), criteriaBuilder, root);
-        criteriaUpdate.where(predicate);
+    public Optional<Integer> updateStorageInBytes(String depositId, long storageInBytes) {
+        return update(depositId, dp -> dp.setStorageInBytes(storageInBytes));
+    }
 
-        criteriaUpdate.set("deleted", deleted);
+    private Optional<Integer> update(String depositId, Consumer<DepositProperties> modification) {
+        DepositProperties dp = get(depositId);
+        if (dp == null)
+            return Optional.of(0);
 
-        var query = currentSession().createQuery(criteriaUpdate);
-        return Optional.of(query.executeUpdate());
+        modification.accept(dp);
+        dictionary.register(dp);
+        return Optional.of(1);
     }
 
-    public Optional<Integer> updateDepositLocation(String depositId, Path currentParentPath) {
-        CriteriaBuilder criteriaBuilder = currentSession().getCriteriaBuilder();
-        CriteriaUpdate<DepositProperties> criteriaUpdate = criteriaBuilder.createCriteriaUpdate(DepositProperties.class);
-        Root<DepositProperties> root = criteriaUpdate.from(DepositProperties.class);
+    public List<DepositProperties> findPendingStorageSizes(int maxResults) {
+        return currentSession().createQuery("from DepositProperties where storageInBytes = :pending and deleted = false order by depositUpdateTimestamp", DepositProperties.class)
+            .setParameter("pending", DepositProperties.storageSizePending)
+            .setMaxResults(maxResults)
+            .list();
+    }
 
-        Predicate predicate = buildQueryCriteria(Map.of("depositId", List.of(depositId)), criteriaBuilder, root);
-        criteriaUpdate.where(predicate);
+    /**
+     * The records of deposits in the given state that are not deleted and have been updated after <code>since</code> (if not null). Answered from the index on state and update
+     * timestamp.
+     */
+    public List<DepositProperties> findInStateUpdatedSince(String depositState, OffsetDateTime since) {
+        var query = currentSession().createQuery("from DepositProperties dp where dp.depositState = :state and dp.deleted = false"
+                + (since != null ? " and dp.depositUpdateTimestamp > :since" : ""), DepositProperties.class)
+            .setParameter("state", depositState)
+            .setReadOnly(true)
+            .setCacheMode(CacheMode.IGNORE);
+        if (since != null) {
+            query.setParameter("since", since);
+        }
+        return query.list();
+    }
 
-        criteriaUpdate.set("location", currentParentPath.toString());
+    /**
+     * Moves at most <code>batchSize</code> records of deleted deposits, and of deposits that have been in state ARCHIVED since before <code>archivedStateBefore</code> (if not null),
+     * to the archive table. Returns the moved records.
+     */
+    public List<DepositProperties> archiveBatch(int batchSize, OffsetDateTime archivedStateBefore) {
+        var query = currentSession().createQuery("from DepositProperties dp where dp.deleted = true"
+                + (archivedStateBefore != null ? " or (dp.depositState = :archived and dp.depositUpdateTimestamp < :before)" : ""), DepositProperties.class)
+            .setCacheMode(CacheMode.IGNORE)
+            .setMaxResults(batchSize);
+        if (archivedStateBefore != null) {
+            // A parameter rather than a literal, so that the state goes through the dictionary
+            query.setParameter("archived", "ARCHIVED");
+            query.setParameter("before", archivedStateBefore);
+        }
 
-        var query = currentSession().createQuery(criteriaUpdate);
-        return Optional.of(query.executeUpdate());
+        OffsetDateTime now = OffsetDateTime.now();
+        List<DepositProperties> archived = new ArrayList<>();
+        for (DepositProperties dp : query.list()) {
+            // A deposit id may have been archived before
+            currentSession().merge(new DepositPropertiesArchive(dp, now));
+            // Deleted one by one, so that only these entries are evicted from the second-level cache
+            currentSession().delete(dp);
+            archived.add(dp);
+        }
+        return archived;
     }
 
 }
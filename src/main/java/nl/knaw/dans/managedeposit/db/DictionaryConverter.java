@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import javax.persistence.AttributeConverter;
+
+/**
+ * Stores a string attribute as its key in the {@link DepositDictionary}. Query parameters compared with the attribute are converted as well; a value that is not in the dictionary
+ * becomes {@link DepositDictionary#unknownId}, so that looking for it does not add it. The writers register the values of a record before it is flushed.
+ */
+public abstract class DictionaryConverter implements AttributeConverter<String, Integer> {
+    private final DepositDictionary.Kind kind;
+
+    protected DictionaryConverter(DepositDictionary.Kind kind) {
+        this.kind = kind;
+    }
+
+    @Override
+    public Integer convertToDatabaseColumn(String value) {
+        return DepositDictionary.getInstance().idOf(kind, value);
+    }
+
+    @Override
+    public String convertToEntityAttribute(Integer id) {
+        return DepositDictionary.getInstance().valueOf(kind, id);
+    }
+}
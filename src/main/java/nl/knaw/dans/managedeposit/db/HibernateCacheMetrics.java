@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Exposes the hit and miss counts of the second-level entity cache and the query cache as gauges. Requires <code>hibernate.generate_statistics</code>.
+ */
+public class HibernateCacheMetrics {
+
+    public static void register(SessionFactory sessionFactory, MetricRegistry metricRegistry) {
+        Statistics statistics = sessionFactory.getStatistics();
+
+        metricRegistry.register("hibernate.cache.entity.hits", (Gauge<Long>) statistics::getSecondLevelCacheHitCount);
+        metricRegistry.register("hibernate.cache.entity.misses", (Gauge<Long>) statistics::getSecondLevelCacheMissCount);
+        metricRegistry.register("hibernate.cache.entity.puts", (Gauge<Long>) statistics::getSecondLevelCachePutCount);
+        metricRegistry.register("hibernate.cache.entity.hitRatio",
+            ratio(statistics::getSecondLevelCacheHitCount, statistics::getSecondLevelCacheMissCount));
+
+        metricRegistry.register("hibernate.cache.query.hits", (Gauge<Long>) statistics::getQueryCacheHitCount);
+        metricRegistry.register("hibernate.cache.query.misses", (Gauge<Long>) statistics::getQueryCacheMissCount);
+        metricRegistry.register("hibernate.cache.query.puts", (Gauge<Long>) statistics::getQueryCachePutCount);
+        metricRegistry.register("hibernate.cache.query.hitRatio",
+            ratio(statistics::getQueryCacheHitCount, statistics::getQueryCacheMissCount));
+    }
+
+    private static RatioGauge ratio(Gauge<Long> hits, Gauge<Long> misses) {
+        return new RatioGauge() {
+
+            @Override
+            protected Ratio getRatio() {
+                long h = hits.getValue();
+                return Ratio.of(h, h + misses.getValue());
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import io.dropwizard.lifecycle.Managed;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Creates the trigram indexes that back the <code>q</code>, <code>descriptionContains</code> and <code>bagNamePrefix</code> report filters on PostgreSQL. These cannot be expressed
+ * in the entity mapping, so <code>hbm2ddl</code> does not create them. Other databases answer the same filters with a case-insensitive LIKE scan.
+ */
+public class SearchIndexInitializer implements Managed {
+    private static final Logger log = LoggerFactory.getLogger(SearchIndexInitializer.class);
+
+    private static final List<String> statements = List.of(
+        "CREATE EXTENSION IF NOT EXISTS pg_trgm",
+        "CREATE INDEX IF NOT EXISTS deposit_properties_description_trgm_idx ON deposit_properties USING gin (lower(description) gin_trgm_ops)",
+        "CREATE INDEX IF NOT EXISTS deposit_properties_bag_name_trgm_idx ON deposit_properties USING gin (lower(bag_name) gin_trgm_ops)",
+        "CREATE INDEX IF NOT EXISTS deposit_properties_deposit_id_trgm_idx ON deposit_properties USING gin (lower(deposit_id) gin_trgm_ops)"
+    );
+
+    private final SessionFactory sessionFactory;
+
+    public SearchIndexInitializer(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public void start() {
+        try (Session session = sessionFactory.openSession()) {
+            Transaction transaction = session.beginTransaction();
+            try {
+                session.doWork(connection -> {
+                    try (Statement statement = connection.createStatement()) {
+                        for (String sql : statements) {
+                            statement.execute(sql);
+                        }
+                    }
+                });
+                transaction.commit();
+                log.info("Full-text search indexes are in place");
+            }
+            catch (HibernateException e) {
+                // Missing privileges for the extension should not prevent the service from starting; searches will then be slower
+                transaction.rollback();
+                log.warn("Could not create full-text search indexes: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.health;
+
+import com.codahale.metrics.health.HealthCheck;
+import nl.knaw.dans.managedeposit.core.service.DepositEventQueue;
+
+public class DepositEventQueueHealthCheck extends HealthCheck {
+    private final DepositEventQueue depositEventQueue;
+
+    public DepositEventQueueHealthCheck(DepositEventQueue depositEventQueue) {
+        this.depositEventQueue = depositEventQueue;
+    }
+
+    @Override
+    protected Result check() {
+        var builder = Result.builder()
+            .withDetail("backlog", depositEventQueue.getBacklog())
+            .withDetail("circuitState", depositEventQueue.getCircuitState())
+            .withDetail("consecutiveFailures", depositEventQueue.getConsecutiveFailures());
+
+        if (depositEventQueue.getCircuitState() == DepositEventQueue.CircuitState.OPEN) {
+            return builder.unhealthy().withMessage("Database is unavailable; %d deposit event(s) are waiting", depositEventQueue.getBacklog()).build();
+        }
+        return builder.healthy().withMessage("%d deposit event(s) are waiting", depositEventQueue.getBacklog()).build();
+    }
+}
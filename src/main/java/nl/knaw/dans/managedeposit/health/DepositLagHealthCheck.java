@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.health;
+
+import com.codahale.metrics.health.HealthCheck;
+import nl.knaw.dans.managedeposit.core.DepositLagReport;
+import nl.knaw.dans.managedeposit.core.service.DepositLag;
+
+public class DepositLagHealthCheck extends HealthCheck {
+    private final DepositLag depositLag;
+
+    public DepositLagHealthCheck(DepositLag depositLag) {
+        this.depositLag = depositLag;
+    }
+
+    @Override
+    protected Result check() {
+        DepositLagReport report = depositLag.report();
+        var builder = Result.builder()
+            .withDetail("oldestPendingAge", report.getOldestPendingAge())
+            .withDetail("threshold", report.getThreshold());
+        report.getBoxes().forEach((box, lag) -> builder.withDetail(box, lag.getP95()));
+
+        if (depositLag.isExceeded(report)) {
+            return builder.unhealthy().withMessage("The database lags more than %d ms behind the deposit boxes", report.getThreshold()).build();
+        }
+        return builder.healthy().withMessage("The 95th percentile of the lag is within %d ms", report.getThreshold()).build();
+    }
+}
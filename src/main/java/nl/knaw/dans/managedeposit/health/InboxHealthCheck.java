@@ -16,50 +16,45 @@
 package nl.knaw.dans.managedeposit.health;
 
 import com.codahale.metrics.health.HealthCheck;
-import nl.knaw.dans.managedeposit.DdManageDepositConfiguration;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import nl.knaw.dans.managedeposit.core.service.InboxProbe;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
 
+/**
+ * Reports the result of the last round of the {@link InboxProbe}, so that a hanging file system does not block the health endpoint. A result that is too old is reported as
+ * unhealthy, as the probe itself may have stopped.
+ */
 public class InboxHealthCheck extends HealthCheck {
-    private static final Logger log = LoggerFactory.getLogger(InboxHealthCheck.class);
-
-    private final DdManageDepositConfiguration configuration;
+    private final InboxProbe inboxProbe;
 
-    public InboxHealthCheck(DdManageDepositConfiguration configuration) {
-        this.configuration = configuration;
+    public InboxHealthCheck(InboxProbe inboxProbe) {
+        this.inboxProbe = inboxProbe;
     }
 
     @Override
-    protected Result check() throws Exception {
-        var valid = true;
-
-        for (Path folder : configuration.getDepositBoxes()) {
-            var exists = Files.exists(folder);
-            var canRead = Files.isReadable(folder);
-
-            if (exists && canRead) {
-                log.debug("Inbox path '{}' exists and is readable", folder);
-            }
-            else {
-                valid = false;
+    protected Result check() {
+        Map<Path, InboxProbe.BoxStatus> statuses = inboxProbe.getStatuses();
+        if (inboxProbe.isStale()) {
+            return Result.unhealthy("InboxPaths have not been checked since %s", Objects.toString(inboxProbe.getLastRound(), "the start"));
+        }
+        if (statuses.isEmpty()) {
+            return Result.healthy("InboxPaths have not been checked yet");
+        }
 
-                if (!exists) {
-                    log.debug("Inbox path '{}' does not exist", folder);
-                }
-                else {
-                    log.debug("Inbox path '{}' is not readable", folder);
-                }
-            }
+        var valid = true;
+        var builder = Result.builder();
+        for (Map.Entry<Path, InboxProbe.BoxStatus> entry : statuses.entrySet()) {
+            builder.withDetail(entry.getKey().toString(), entry.getValue());
+            valid &= entry.getValue().isAccessible();
         }
 
         if (valid) {
-            return Result.healthy();
+            return builder.healthy().build();
         }
         else {
-            return Result.unhealthy("InboxPaths are not accessible");
+            return builder.unhealthy().withMessage("InboxPaths are not accessible").build();
         }
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.resources;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.knaw.dans.managedeposit.core.DepositEvent;
+import nl.knaw.dans.managedeposit.core.DepositEventBatch;
+import nl.knaw.dans.managedeposit.core.service.DepositEventBuffer;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Change feed of the deposit events applied by the monitor. Consumers resume from the id of the last event they have seen, either by long-polling for JSON batches or by keeping a
+ * Server-Sent Events stream open. An id from before a restart, or from another instance, yields the events still in the buffer, marked as truncated. Neither holds a server thread while waiting: the requests are suspended, and are resumed or written to on <code>executor</code> when the
+ * {@link DepositEventBuffer} reports a new event.
+ */
+@Path("/events")
+public class DepositEventsResource {
+    private static final int maxLimit = 10000;
+    private static final long maxTimeoutSeconds = 60;
+    private static final long keepAliveMillis = 15 * 1000;
+    private static final long maxStreamMillis = 10 * 60 * 1000;
+
+    private final DepositEventBuffer depositEventBuffer;
+    private final ObjectMapper objectMapper;
+    private final ScheduledExecutorService executor;
+
+    public DepositEventsResource(DepositEventBuffer depositEventBuffer, ObjectMapper objectMapper, ScheduledExecutorService executor) {
+        this.depositEventBuffer = depositEventBuffer;
+        this.objectMapper = objectMapper;
+        this.executor = executor;
+    }
+
+    @GET
+    @Produces("application/json")
+    public void pollEvents(@QueryParam("since") String since, @QueryParam("limit") @DefaultValue("1000") int limit, @QueryParam("timeout") @DefaultValue("30") long timeout,
+        @Suspended AsyncResponse asyncResponse) {
+        if (limit < 1 || limit > maxLimit)
+            throw new BadRequestException(String.format("'limit' must be between 1 and %d", maxLimit));
+        if (timeout < 0 || timeout > maxTimeoutSeconds)
+            throw new BadRequestException(String.format("'timeout' must be between 0 and %d seconds", maxTimeoutSeconds));
+
+        long current = depositEventBuffer.getLastSequence();
+        Supplier<DepositEventBatch> next = since != null ? () -> depositEventBuffer.since(since, limit) : () -> depositEventBuffer.since(current, limit);
+        // The listener is registered before the buffer is looked at, so that an event published in between is not missed
+        Runnable listener = () -> executor.execute(() -> {
+            DepositEventBatch batch = next.get();
+            if (!batch.getEvents().isEmpty())
+                asyncResponse.resume(batch);
+        });
+        asyncResponse.register((CompletionCallback) throwable -> depositEventBuffer.removeListener(listener));
+        asyncResponse.setTimeout(timeout, TimeUnit.SECONDS);
+        asyncResponse.setTimeoutHandler(response -> response.resume(next.get()));
+        depositEventBuffer.addListener(listener);
+
+        DepositEventBatch batch = next.get();
+        if (!batch.getEvents().isEmpty() || batch.isTruncated() || timeout == 0)
+            asyncResponse.resume(batch);
+    }
+
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamEvents(@QueryParam("since") String since, @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId, @Context SseEventSink sink, @Context Sse sse) {
+        new EventStream(lastEventId != null ? lastEventId : since, depositEventBuffer.getLastSequence(), sink, sse).open();
+    }
+
+    /**
+     * One open SSE stream. The stream is closed after a while, so that a forgotten client does not stay registered forever; SSE clients reconnect with Last-Event-ID.
+     */
+    private class EventStream {
+        private final SseEventSink sink;
+        private final Sse sse;
+        private final long deadline = System.currentTimeMillis() + maxStreamMillis;
+        private final Runnable listener = () -> executor.execute(this::send);
+        // The id that the client resumes from, until the first batch has been sent; from then on the sequence number in this epoch
+        private String resumeFrom;
+        private long sequence;
+        private boolean sent;
+        private volatile ScheduledFuture<?> keepAlive;
+
+        EventStream(String resumeFrom, long sequence, SseEventSink sink, Sse sse) {
+            this.resumeFrom = resumeFrom;
+            this.sequence = sequence;
+            this.sink = sink;
+            this.sse = sse;
+        }
+
+        synchronized void open() {
+            sink.send(sse.newEventBuilder().comment("connected").reconnectDelay(1000).build());
+            depositEventBuffer.addListener(listener);
+            keepAlive = executor.scheduleWithFixedDelay(this::keepAlive, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+            executor.execute(this::send);
+        }
+
+        private synchronized void send() {
+            if (isDone())
+                return;
+            DepositEventBatch batch = resumeFrom != null ? depositEventBuffer.since(resumeFrom, maxLimit) : depositEventBuffer.since(sequence, maxLimit);
+            resumeFrom = null;
+            if (batch.isTruncated()) {
+                write(sse.newEventBuilder().name("TRUNCATED").data("{}").build());
+            }
+            for (DepositEvent event : batch.getEvents()) {
+                try {
+                    write(sse.newEventBuilder().id(event.getId()).name(event.getType().toString()).data(objectMapper.writeValueAsString(event)).build());
+                }
+                catch (JsonProcessingException e) {
+                    close();
+                    return;
+                }
+            }
+            sequence = batch.getLastSequence();
+        }
+
+        // A comment line, sent when nothing else has been; a failing write tells us that the client has gone
+        private synchronized void keepAlive() {
+            if (isDone())
+                return;
+            if (!sent)
+                write(sse.newEventBuilder().comment("keep-alive").build());
+            sent = false;
+        }
+
+        private void write(OutboundSseEvent event) {
+            sent = true;
+            sink.send(event).whenComplete((result, failure) -> {
+                if (failure != null)
+                    close();
+            });
+        }
+
+        private boolean isDone() {
+            if (sink.isClosed() || System.currentTimeMillis() > deadline) {
+                close();
+                return true;
+            }
+            return false;
+        }
+
+        private void close() {
+            depositEventBuffer.removeListener(listener);
+            if (keepAlive != null)
+                keepAlive.cancel(false);
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.resources;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import nl.knaw.dans.managedeposit.core.DepositImportResult;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.core.service.DepositImporter;
+import nl.knaw.dans.managedeposit.core.service.TextTruncation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk import of deposit records, for instance from an older system. The body is streamed, as NDJSON (one JSON record per line) or as CSV with a header line in the layout of the CSV
+ * report. Records that cannot be read are reported by line number; the others are written in batches, and existing records with the same deposit id are overwritten.
+ */
+@Path("/import")
+public class DepositImportResource {
+    private static final Logger log = LoggerFactory.getLogger(DepositImportResource.class);
+    private static final int batchSize = 1000;
+
+    private final DepositImporter depositImporter;
+    private final ObjectReader jsonReader;
+    private final ObjectReader csvReader;
+
+    public DepositImportResource(DepositImporter depositImporter, ObjectMapper objectMapper) {
+        this.depositImporter = depositImporter;
+        this.jsonReader = objectMapper.readerFor(DepositProperties.class);
+        CsvMapper csvMapper = new CsvMapper();
+        csvMapper.registerModule(new JavaTimeModule());
+        this.csvReader = csvMapper.readerFor(DepositProperties.class)
+            .with(CsvSchema.emptySchema().withHeader())
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    @POST
+    @Consumes("application/x-ndjson")
+    @Produces("application/json")
+    public DepositImportResult importNdjson(InputStream body) throws IOException {
+        Batcher batcher = new Batcher();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank())
+                    continue;
+                try {
+                    batcher.add(lineNumber, jsonReader.readValue(line));
+                }
+                catch (JsonProcessingException | IllegalArgumentException e) {
+                    batcher.result.addError(lineNumber, e.getMessage());
+                }
+            }
+        }
+        return batcher.finish();
+    }
+
+    @POST
+    @Consumes("text/csv")
+    @Produces("application/json")
+    public DepositImportResult importCsv(InputStream body) throws IOException {
+        Batcher batcher = new Batcher();
+        try (MappingIterator<DepositProperties> records = csvReader.readValues(body)) {
+            long lastFailedLine = -1;
+            while (true) {
+                try {
+                    if (!records.hasNextValue())
+                        break;
+                    DepositProperties dp = records.nextValue();
+                    batcher.add(records.getCurrentLocation().getLineNr(), dp);
+                }
+                catch (JsonProcessingException | RuntimeException e) {
+                    JsonLocation location = records.getCurrentLocation();
+                    long lineNumber = location == null ? -1 : location.getLineNr();
+                    batcher.result.addError(lineNumber, e.getMessage());
+                    // A row that cannot be parsed at all leaves the parser where it was; give up rather than report the same line forever
+                    if (lineNumber == lastFailedLine)
+                        break;
+                    lastFailedLine = lineNumber;
+                }
+            }
+        }
+        return batcher.finish();
+    }
+
+    private static DepositProperties validate(DepositProperties dp) {
+        if (isBlank(dp.getDepositId()) || isBlank(dp.getDepositor()) || isBlank(dp.getBagName()))
+            throw new IllegalArgumentException("depositId, depositor and bagName are required");
+        if (dp.getDescription() != null)
+            dp.setDescription(TextTruncation.stripEnd(dp.getDescription(), TextTruncation.maxDescriptionLength));
+        if (dp.getLocation() != null)
+            dp.setLocation(TextTruncation.stripBegin(dp.getLocation(), TextTruncation.maxDirectoryLength));
+        return dp;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    private class Batcher {
+        private final DepositImportResult result = new DepositImportResult();
+        private final List<DepositProperties> records = new ArrayList<>(batchSize);
+        private final List<Long> lineNumbers = new ArrayList<>(batchSize);
+
+        void add(long lineNumber, DepositProperties dp) {
+            try {
+                records.add(validate(dp));
+                lineNumbers.add(lineNumber);
+            }
+            catch (IllegalArgumentException e) {
+                result.addError(lineNumber, e.getMessage());
+                return;
+            }
+            if (records.size() >= batchSize)
+                flush();
+        }
+
+        private void flush() {
+            if (records.isEmpty())
+                return;
+            try {
+                result.addImported(depositImporter.importBatch(records));
+            }
+            catch (RuntimeException e) {
+                log.warn("Importing the records of lines {}-{} failed", lineNumbers.get(0), lineNumbers.get(lineNumbers.size() - 1), e);
+                // The whole batch has been rolled back
+                for (long lineNumber : lineNumbers) {
+                    result.addError(lineNumber, "not imported: " + e.getMessage());
+                }
+            }
+            records.clear();
+            lineNumbers.clear();
+        }
+
+        DepositImportResult finish() {
+            flush();
+            if (result.getImported() > 0)
+                depositImporter.refreshStatistics();
+            log.info("Imported {} deposit record(s); {} failed", result.getImported(), result.getFailed());
+            return result;
+        }
+    }
+}
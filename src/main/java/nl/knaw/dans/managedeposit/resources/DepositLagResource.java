@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.resources;
+
+import nl.knaw.dans.managedeposit.core.DepositLagReport;
+import nl.knaw.dans.managedeposit.core.service.DepositLag;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+@Path("/status/lag")
+public class DepositLagResource {
+    private final DepositLag depositLag;
+
+    public DepositLagResource(DepositLag depositLag) {
+        this.depositLag = depositLag;
+    }
+
+    @GET
+    @Produces("application/json")
+    public DepositLagReport getLag() {
+        return depositLag.report();
+    }
+}
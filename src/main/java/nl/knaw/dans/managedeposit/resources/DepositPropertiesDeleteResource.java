@@ -16,6 +16,9 @@
 package nl.knaw.dans.managedeposit.resources;
 
 import io.dropwizard.hibernate.UnitOfWork;
+import nl.knaw.dans.managedeposit.core.DepositFilter;
+import nl.knaw.dans.managedeposit.core.service.DepositIndex;
+import nl.knaw.dans.managedeposit.core.service.DepositStatistics;
 import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
 
 import javax.ws.rs.Consumes;
@@ -26,13 +29,18 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriInfo;
+import java.util.List;
 
 @Path("/delete-deposit")
 public class DepositPropertiesDeleteResource {
     private final DepositPropertiesDAO depositPropertiesDAO;
+    private final DepositIndex depositIndex;
+    private final DepositStatistics depositStatistics;
 
-    public DepositPropertiesDeleteResource(DepositPropertiesDAO depositPropertiesDAO) {
+    public DepositPropertiesDeleteResource(DepositPropertiesDAO depositPropertiesDAO, DepositIndex depositIndex, DepositStatistics depositStatistics) {
         this.depositPropertiesDAO = depositPropertiesDAO;
+        this.depositIndex = depositIndex;
+        this.depositStatistics = depositStatistics;
     }
 
     @POST
@@ -40,7 +48,18 @@ public class DepositPropertiesDeleteResource {
     @Produces("text/plain")
     @Consumes(MediaType.TEXT_PLAIN)
     public String deleteDepositPropertiesUsingParams(@Context UriInfo uriInfo) {
-        int deletedNumber = depositPropertiesDAO.deleteSelection(uriInfo.getQueryParameters()).orElseThrow(() -> new NotFoundException("Not such deposit with given criteria"));
+        DepositFilter filter = FilterParameters.parse(uriInfo.getQueryParameters());
+        // Read before the delete, so that only these entries have to be dropped from the index
+        List<String> depositIds = depositPropertiesDAO.findIdSelection(filter);
+        int deletedNumber = depositPropertiesDAO.deleteSelection(filter).orElseThrow(() -> new NotFoundException("Not such deposit with given criteria"));
+        if (deletedNumber > 0) {
+            // Counted within the transaction, and applied only if the delete is committed
+            List<Object[]> counts = depositPropertiesDAO.countByLocationStateDeleted();
+            depositPropertiesDAO.afterCommit(() -> {
+                depositIds.forEach(depositIndex::remove);
+                depositStatistics.seed(counts);
+            });
+        }
         return String.format("Deleted number(s): %d.", deletedNumber);
     }
 
@@ -16,32 +16,201 @@
 package nl.knaw.dans.managedeposit.resources;
 
 import io.dropwizard.hibernate.UnitOfWork;
+import nl.knaw.dans.managedeposit.core.DepositFilter;
+import nl.knaw.dans.managedeposit.core.DepositLookupResult;
 import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.db.CsvCopyExporter;
 import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
 
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Path("/report")
 public class DepositPropertiesReportResource {
+    private static final int maxLookupIds = 10_000;
+    private static final int lookupChunkSize = 500;
+    private static final MediaType csvType = MediaType.valueOf("text/csv");
+
     private final DepositPropertiesDAO depositPropertiesDAO;
+    private final CsvCopyExporter csvCopyExporter;
 
-    public DepositPropertiesReportResource(DepositPropertiesDAO depositPropertiesDAO) {
+    /**
+     * @param csvCopyExporter exporter for CSV reports on PostgreSQL, or <code>null</code> to write all reports through Hibernate
+     */
+    public DepositPropertiesReportResource(DepositPropertiesDAO depositPropertiesDAO, CsvCopyExporter csvCopyExporter) {
         this.depositPropertiesDAO = depositPropertiesDAO;
+        this.csvCopyExporter = csvCopyExporter;
+    }
+
+    @GET
+    @UnitOfWork
+    @Produces({ "application/json", "application/x-ndjson" })
+    public List<?> listDepositProperties(@Context UriInfo uriInfo) {
+        return report(new ReportRequest(uriInfo));
     }
 
     @GET
     @UnitOfWork
+    @Produces("text/csv")
+    public Response csvDepositProperties(@Context UriInfo uriInfo) {
+        ReportRequest request = new ReportRequest(uriInfo);
+        if (csvCopyExporter != null)
+            return Response.ok(csvCopyExporter.export(request.filter, request.fields, request.includeArchive)).build();
+        return Response.ok(report(request)).build();
+    }
+
+    // A deposit that is registered again after its record was archived is in both tables; only the record in the hot table is reported
+    private List<?> report(ReportRequest request) {
+        DepositFilter filter = request.filter;
+        if (request.fields.isEmpty()) {
+            List<DepositProperties> result = new ArrayList<>(depositPropertiesDAO.findSelection(filter));
+            if (request.includeArchive) {
+                Set<String> hotIds = result.stream().map(DepositProperties::getDepositId).collect(Collectors.toSet());
+                depositPropertiesDAO.findArchivedSelection(filter).stream()
+                    .filter(dp -> !hotIds.contains(dp.getDepositId()))
+                    .forEach(result::add);
+            }
+            return result;
+        }
+        else if (!request.includeArchive) {
+            return depositPropertiesDAO.findSelection(filter, request.fields);
+        }
+        else {
+            // The deposit id is needed to leave out the duplicates, even if it has not been asked for
+            boolean withoutDepositId = !request.fields.contains("depositId");
+            List<String> fields = new ArrayList<>(request.fields);
+            if (withoutDepositId)
+                fields.add("depositId");
+
+            List<Map<String, Object>> result = new ArrayList<>(depositPropertiesDAO.findSelection(filter, fields));
+            Set<Object> hotIds = result.stream().map(row -> row.get("depositId")).collect(Collectors.toSet());
+            depositPropertiesDAO.findArchivedSelection(filter, fields).stream()
+                .filter(row -> !hotIds.contains(row.get("depositId")))
+                .forEach(result::add);
+            if (withoutDepositId)
+                result.forEach(row -> row.remove("depositId"));
+            return result;
+        }
+    }
+
+    @POST
+    @UnitOfWork(readOnly = true)
+    @Path("/lookup")
+    @Consumes("application/json")
+    @Produces({ "application/json", "text/csv" })
+    public Response lookupDepositProperties(List<String> depositIds, @Context HttpHeaders headers) {
+        return lookup(depositIds, headers);
+    }
+
+    @POST
+    @UnitOfWork(readOnly = true)
+    @Path("/lookup")
+    @Consumes("text/plain")
     @Produces({ "application/json", "text/csv" })
-    public List<DepositProperties> listDepositProperties(@Context UriInfo uriInfo) {
-        return depositPropertiesDAO.findSelection(uriInfo.getQueryParameters());
+    public Response lookupDepositProperties(String depositIds, @Context HttpHeaders headers) {
+        return lookup(Arrays.asList(depositIds.split("\\R")), headers);
+    }
+
+    private Response lookup(List<String> requestedIds, HttpHeaders headers) {
+        if (requestedIds == null)
+            throw new BadRequestException("No deposit ids given");
+        List<String> depositIds = requestedIds.stream()
+            .filter(Objects::nonNull)
+            .map(String::trim)
+            .filter(id -> !id.isEmpty())
+            .distinct()
+            .collect(Collectors.toList());
+        if (depositIds.size() > maxLookupIds)
+            throw new BadRequestException(String.format("At most %d deposit ids can be looked up at once", maxLookupIds));
+
+        Map<String, DepositProperties> found = new LinkedHashMap<>();
+        depositPropertiesDAO.findByIds(depositIds, lookupChunkSize).forEach(dp -> found.put(dp.getDepositId(), dp));
+        List<String> notInHotTable = depositIds.stream().filter(id -> !found.containsKey(id)).collect(Collectors.toList());
+        if (!notInHotTable.isEmpty())
+            depositPropertiesDAO.findArchivedByIds(notInHotTable, lookupChunkSize).forEach(dp -> found.put(dp.getDepositId(), dp));
+
+        // In the order of the request
+        List<DepositProperties> foundDeposits = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String depositId : depositIds) {
+            DepositProperties dp = found.get(depositId);
+            if (dp != null)
+                foundDeposits.add(dp);
+            else
+                missing.add(depositId);
+        }
+
+        if (prefersCsv(headers)) {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            foundDeposits.forEach(dp -> rows.add(toLookupRow(dp.getDepositId(), dp)));
+            missing.forEach(depositId -> rows.add(toLookupRow(depositId, null)));
+            return Response.ok(rows, "text/csv").build();
+        }
+        return Response.ok(new DepositLookupResult(foundDeposits, missing), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    // The first acceptable type decides; wildcards match JSON first
+    private static boolean prefersCsv(HttpHeaders headers) {
+        for (MediaType mediaType : headers.getAcceptableMediaTypes()) {
+            if (mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+                return false;
+            if (mediaType.isCompatible(csvType))
+                return true;
+        }
+        return false;
+    }
+
+    // A CSV row with the report columns and a 'found' column; the columns of a missing deposit are left empty
+    private static Map<String, Object> toLookupRow(String depositId, DepositProperties dp) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("depositor", dp == null ? null : dp.getDepositor());
+        row.put("depositId", depositId);
+        row.put("bagName", dp == null ? null : dp.getBagName());
+        row.put("depositState", dp == null ? null : dp.getDepositState());
+        row.put("depositCreationTimestamp", dp == null ? null : dp.getDepositCreationTimestamp());
+        row.put("depositUpdateTimestamp", dp == null ? null : dp.getDepositUpdateTimestamp());
+        row.put("description", dp == null ? null : dp.getDescription());
+        row.put("location", dp == null ? null : dp.getLocation());
+        row.put("storageInBytes", dp == null ? null : dp.getStorageInBytes());
+        row.put("deleted", dp == null ? null : dp.isDeleted());
+        row.put("found", dp != null);
+        return row;
+    }
+
+    private class ReportRequest {
+        private final List<String> fields;
+        private final boolean includeArchive;
+        private final DepositFilter filter;
+
+        ReportRequest(UriInfo uriInfo) {
+            MultivaluedMap<String, String> queryParameters = new MultivaluedHashMap<>(uriInfo.getQueryParameters());
+            this.fields = parseFields(queryParameters.remove("fields"));
+            this.includeArchive = includeArchive(queryParameters);
+            this.filter = FilterParameters.parse(queryParameters);
+        }
     }
 
     @GET
@@ -49,7 +218,46 @@ public class DepositPropertiesReportResource {
     @Produces("application/json")
     @Path("/{depositId}")
     public DepositProperties getDepositId(@PathParam("depositId") Optional<String> depositId) {
-        return depositPropertiesDAO.findById(depositId.get()).orElseThrow(() -> new NotFoundException(String.format("No such deposit: %s", depositId.orElse(""))));
+        return depositPropertiesDAO.findById(depositId.get())
+            .or(() -> depositPropertiesDAO.findArchivedById(depositId.get()))
+            .orElseThrow(() -> new NotFoundException(String.format("No such deposit: %s", depositId.orElse(""))));
+    }
+
+    /**
+     * Deleted deposits are moved to the archive table in the background, so a report that asks for them must look there as well.
+     */
+    private boolean includeArchive(MultivaluedMap<String, String> queryParameters) {
+        // The parameter names are matched without regard to case, as the filter does
+        boolean includeArchive = false;
+        for (Iterator<Map.Entry<String, List<String>>> it = queryParameters.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, List<String>> parameter = it.next();
+            if (parameter.getKey().equalsIgnoreCase("includeArchive")) {
+                includeArchive |= parameter.getValue().stream().anyMatch(Boolean::parseBoolean);
+                it.remove();
+            }
+            else if (parameter.getKey().equalsIgnoreCase("deleted")) {
+                includeArchive |= parameter.getValue().stream().anyMatch(Boolean::parseBoolean);
+            }
+        }
+        return includeArchive;
+    }
+
+    private List<String> parseFields(List<String> values) {
+        if (values == null)
+            return List.of();
+
+        List<String> fields = values.stream()
+            .flatMap(value -> Arrays.stream(value.split(",")))
+            .map(String::trim)
+            .filter(field -> !field.isEmpty())
+            .distinct()
+            .collect(Collectors.toList());
+
+        for (String field : fields) {
+            if (!DepositProperties.reportColumns.contains(field))
+                throw new BadRequestException(String.format("Unknown field '%s'; possible fields: %s", field, String.join(", ", DepositProperties.reportColumns)));
+        }
+        return fields;
     }
 
 }
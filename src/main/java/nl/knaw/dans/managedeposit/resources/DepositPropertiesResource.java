@@ -17,6 +17,8 @@ package nl.knaw.dans.managedeposit.resources;
 
 import io.dropwizard.hibernate.UnitOfWork;
 import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.core.service.DepositIndex;
+import nl.knaw.dans.managedeposit.core.service.DepositStatistics;
 import nl.knaw.dans.managedeposit.db.DepositPropertiesDAO;
 
 import javax.validation.Valid;
@@ -27,14 +29,19 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.Optional;
 
 @Path("/")
 public class DepositPropertiesResource {
     private final DepositPropertiesDAO depositPropertiesDAO;
+    private final DepositIndex depositIndex;
+    private final DepositStatistics depositStatistics;
     private final String helpInfo;
 
-    public DepositPropertiesResource(DepositPropertiesDAO depositPropertiesDAO) {
+    public DepositPropertiesResource(DepositPropertiesDAO depositPropertiesDAO, DepositIndex depositIndex, DepositStatistics depositStatistics) {
         this.depositPropertiesDAO = depositPropertiesDAO;
+        this.depositIndex = depositIndex;
+        this.depositStatistics = depositStatistics;
         this.helpInfo = writeHelpInfoText();
     }
 
@@ -47,8 +54,16 @@ public class DepositPropertiesResource {
             "    Query string parameters: user, state, startdate, enddate \n" +
             "    'startdate'/'enddate' format: yyyy-MM-dd \n" +
             "    Possible 'state' value: ARCHIVED, DRAFT, FAILED, FINALIZING, INVALID, REJECTED, SUBMITTED, UPLOADED, PUBLISHED \n" +
+            "  - Search reports: q (description, bagName or depositId contains), descriptionContains, bagNamePrefix (case-insensitive) \n" +
+            "  - Report columns: fields=depositId,depositState,... ; formats: application/json, text/csv, application/x-ndjson \n" +
+            "  - Archived records: deleted deposits are moved to an archive; add includeArchive=true (implied by deleted=true) to report them \n" +
+            "  - Look up many deposits: POST basePath/report/lookup with a JSON array or lines of deposit ids \n" +
+            "  - Bulk import: POST basePath/import with NDJSON (application/x-ndjson) or CSV with a header line (text/csv) \n" +
+            "  - Database lag behind the deposit boxes: GET basePath/status/lag \n" +
+            "  - Deposits stuck in a state longer than its threshold: GET basePath/report/stuck \n" +
             "  Examples: \n" +
             "    curl -i -X GET  basePath/report?startdate=yyyy-MM-dd \n" +
+            "    curl -i -X GET  basePath/report?descriptionContains=checksum \n" +
             "    curl -i -X GET basePath/delete-deposit?user=XXX&state=REJECTED \n" +
             "    curl -i -X POST basePath/delete-deposit?user=XXX \n" +
             "    curl -i -X POST basePath/delete-deposit?user=XXX&state=REJECTED";
@@ -71,6 +86,13 @@ public class DepositPropertiesResource {
     @Consumes("application/json")
     @Produces("application/json")
     public DepositProperties createDepositPropertiesRecord(@Valid DepositProperties depositProperties) {
-        return depositPropertiesDAO.create(depositProperties);
+        Optional<DepositIndex.Entry> before = depositIndex.get(depositProperties.getDepositId());
+        DepositProperties created = depositPropertiesDAO.create(depositProperties);
+        DepositIndex.Entry after = DepositIndex.entryOf(created);
+        depositPropertiesDAO.afterCommit(() -> {
+            depositIndex.put(created);
+            depositStatistics.update(before, Optional.of(after));
+        });
+        return created;
     }
 }
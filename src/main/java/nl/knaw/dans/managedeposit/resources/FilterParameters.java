@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.resources;
+
+import nl.knaw.dans.managedeposit.core.DepositFilter;
+
+import javax.ws.rs.BadRequestException;
+import java.util.List;
+import java.util.Map;
+
+final class FilterParameters {
+    private FilterParameters() {
+    }
+
+    /**
+     * Parses the query parameters into a {@link DepositFilter}, rejecting unknown parameters and malformed values with 400 Bad Request before anything is sent to the database.
+     */
+    static DepositFilter parse(Map<String, List<String>> queryParameters) {
+        try {
+            return DepositFilter.parse(queryParameters);
+        }
+        catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+}
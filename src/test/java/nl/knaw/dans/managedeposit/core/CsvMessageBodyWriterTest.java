@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import nl.knaw.dans.managedeposit.config.ReportSerializationConfig;
+import nl.knaw.dans.managedeposit.core.service.ChunkedSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Pins the CSV that Jackson writes for the report; the COPY export of CsvCopyExporter must write the same.
+ */
+public class CsvMessageBodyWriterTest {
+    private final ChunkedSerializer chunkedSerializer = new ChunkedSerializer(new ReportSerializationConfig());
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        chunkedSerializer.stop();
+    }
+
+    @Test
+    public void writeTo_should_quote_long_values_and_values_with_characters_below_the_dash() throws IOException {
+        DepositProperties plain = new DepositProperties("plain", "user001", "bag", "SUBMITTED", "Deposit is valid",
+            OffsetDateTime.parse("2023-05-01T10:15:30Z"), "/var/opt/inbox", 1234);
+        plain.setDepositUpdateTimestamp(OffsetDateTime.parse("2023-05-02T11:00:00.120+02:00"));
+        DepositProperties quoted = new DepositProperties("a5f6c0e2-0f3a-4c4a-9a8e-0c9d2f0f5e11", "user002", "bag, with \"quotes\"", "REJECTED", "",
+            OffsetDateTime.parse("2023-01-01T00:00:00.5Z"), "/var/opt/outbox", 0);
+        quoted.setDeleted(true);
+
+        assertThat(write(List.of(plain, quoted))).isEqualTo(
+            "depositor,depositId,bagName,depositState,depositCreationTimestamp,depositUpdateTimestamp,description,location,storageInBytes,deleted\n"
+                + "user001,plain,bag,SUBMITTED,2023-05-01T10:15:30Z,\"2023-05-02T11:00:00.12+02:00\",\"Deposit is valid\",/var/opt/inbox,1234,false\n"
+                + "user002,\"a5f6c0e2-0f3a-4c4a-9a8e-0c9d2f0f5e11\",\"bag, with \"\"quotes\"\"\",REJECTED,2023-01-01T00:00:00.5Z,,,/var/opt/outbox,0,true\n");
+    }
+
+    @Test
+    public void writeTo_should_write_a_projection_in_the_order_of_its_columns() throws IOException {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("depositId", "plain");
+        row.put("deleted", false);
+        row.put("storageInBytes", 1234L);
+        row.put("description", "line one\nline two");
+
+        assertThat(write(List.of(row))).isEqualTo(
+            "depositId,deleted,storageInBytes,description\n"
+                + "plain,false,1234,\"line one\nline two\"\n");
+    }
+
+    @Test
+    public void writeTo_should_write_nothing_for_an_empty_report() throws IOException {
+        assertThat(write(List.of())).isEmpty();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private String write(List<?> data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new CsvMessageBodyWriter(chunkedSerializer).writeTo((List) data, List.class, List.class, null, MediaType.valueOf("text/csv"), null, outputStream);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+}
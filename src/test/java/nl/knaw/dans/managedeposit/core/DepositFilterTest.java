@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DepositFilterTest {
+
+    @Test
+    public void parse_should_return_the_empty_filter_without_parameters() {
+        DepositFilter filter = DepositFilter.parse(Map.of());
+
+        assertThat(filter.isEmpty()).isTrue();
+        assertThat(filter.getWhereClause()).isEmpty();
+        assertThat(filter.getParameters()).isEmpty();
+    }
+
+    @Test
+    public void parse_should_combine_values_of_one_parameter_with_or_and_parameters_with_and() {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        parameters.put("state", List.of("SUBMITTED", "REJECTED"));
+        parameters.put("user", List.of("user001"));
+
+        DepositFilter filter = DepositFilter.parse(parameters);
+
+        assertThat(filter.getWhereClause()).isEqualTo(" where (e.depositor = :p0) and (e.depositState = :p1 or e.depositState = :p2)");
+        assertThat(filter.getParameters()).containsExactly(Map.entry("p0", "user001"), Map.entry("p1", "SUBMITTED"), Map.entry("p2", "REJECTED"));
+        assertThat(filter.getShape()).isEqualTo("USER:1,STATE:2");
+    }
+
+    @Test
+    public void parse_should_match_parameter_names_case_insensitively() {
+        DepositFilter filter = DepositFilter.parse(Map.of("StartDate", List.of("2023-05-01")));
+
+        assertThat(filter.has(DepositFilter.Criterion.START_DATE)).isTrue();
+        assertThat(filter.getValues(DepositFilter.Criterion.START_DATE)).containsExactly(OffsetDateTime.parse("2023-05-01T00:00:00Z"));
+    }
+
+    @Test
+    public void parse_should_escape_like_wildcards_in_search_values() {
+        DepositFilter filter = DepositFilter.parse(Map.of(
+            "descriptionContains", List.of("100%_Done\\"),
+            "bagNamePrefix", List.of("Bag_")));
+
+        assertThat(filter.getValues(DepositFilter.Criterion.DESCRIPTION_CONTAINS)).containsExactly("%100\\%\\_done\\\\%");
+        assertThat(filter.getValues(DepositFilter.Criterion.BAG_NAME_PREFIX)).containsExactly("bag\\_%");
+        assertThat(filter.getWhereClause()).contains("lower(e.description) like :p0 escape '\\'");
+    }
+
+    @Test
+    public void parse_should_give_equal_shapes_the_same_where_clause() {
+        DepositFilter first = DepositFilter.parse(Map.of("user", List.of("user001")));
+        DepositFilter second = DepositFilter.parse(Map.of("user", List.of("user002")));
+
+        assertThat(second.getWhereClause()).isSameAs(first.getWhereClause());
+    }
+
+    @Test
+    public void parse_should_accept_the_attribute_names_that_were_accepted_before() {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        parameters.put("depositor", List.of("user001"));
+        parameters.put("bagName", List.of("bag"));
+        parameters.put("depositState", List.of("ARCHIVED"));
+        parameters.put("description", List.of("Deposit is archived"));
+        parameters.put("location", List.of("/var/opt/inbox"));
+
+        DepositFilter filter = DepositFilter.parse(parameters);
+
+        assertThat(filter.getWhereClause()).isEqualTo(" where (e.depositor = :p0) and (e.bagName = :p1) and (e.depositState = :p2) and (e.description = :p3) and (e.location = :p4)");
+        assertThat(filter.getParameters()).containsValues("user001", "bag", "ARCHIVED", "Deposit is archived", "/var/opt/inbox");
+    }
+
+    @Test
+    public void parse_should_reject_an_unknown_parameter() {
+        assertThatThrownBy(() -> DepositFilter.parse(Map.of("color", List.of("red"))))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageStartingWith("Unknown parameter 'color'");
+    }
+
+    @Test
+    public void parse_should_reject_a_deleted_value_that_is_not_a_boolean() {
+        assertThatThrownBy(() -> DepositFilter.parse(Map.of("deleted", List.of("yes"))))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("must be true or false");
+    }
+
+    @Test
+    public void parse_should_reject_a_malformed_date() {
+        assertThatThrownBy(() -> DepositFilter.parse(Map.of("enddate", List.of("01-05-2023"))))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("yyyy-MM-dd");
+    }
+
+    @Test
+    public void parse_should_reject_a_value_with_a_nul_character() {
+        assertThatThrownBy(() -> DepositFilter.parse(Map.of("user", List.of("user" + (char) 0))))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("NUL");
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import nl.knaw.dans.managedeposit.config.ReportSerializationConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ChunkedSerializerTest {
+    private final ChunkedSerializer chunkedSerializer = new ChunkedSerializer(config(4, 3, 2));
+
+    // Writes a header with the first chunk, and one line per record; later chunks finish first
+    private static final ChunkedSerializer.ChunkEncoder<Integer> encoder = (chunk, first) -> {
+        try {
+            Thread.sleep(Math.max(0, 50 - 5L * chunk.get(0)));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String lines = chunk.stream().map(i -> i + "\n").collect(Collectors.joining());
+        return ((first ? "header\n" : "") + lines).getBytes(StandardCharsets.UTF_8);
+    };
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        chunkedSerializer.stop();
+    }
+
+    @Test
+    public void isParallel_should_only_hold_for_more_than_one_chunk() {
+        assertThat(chunkedSerializer.isParallel(3)).isFalse();
+        assertThat(chunkedSerializer.isParallel(4)).isTrue();
+        assertThat(new ChunkedSerializer(config(1, 3, 2)).isParallel(100)).isFalse();
+    }
+
+    @Test
+    public void write_should_keep_the_order_of_the_records_and_write_one_header() throws IOException {
+        List<Integer> records = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        chunkedSerializer.write(records, outputStream, encoder);
+
+        String expected = "header\n" + records.stream().map(i -> i + "\n").collect(Collectors.joining());
+        assertThat(outputStream.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+    }
+
+    @Test
+    public void write_should_write_nothing_for_no_records() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        chunkedSerializer.write(List.of(), outputStream, encoder);
+
+        assertThat(outputStream.size()).isZero();
+    }
+
+    @Test
+    public void write_should_pass_on_the_exception_of_an_encoder() {
+        List<Integer> records = IntStream.range(0, 10).boxed().collect(Collectors.toList());
+        ChunkedSerializer.ChunkEncoder<Integer> failing = (chunk, first) -> {
+            if (chunk.contains(7))
+                throw new IOException("cannot encode 7");
+            return new byte[0];
+        };
+
+        assertThatThrownBy(() -> chunkedSerializer.write(records, new ByteArrayOutputStream(), failing))
+            .isInstanceOf(IOException.class)
+            .hasMessage("cannot encode 7");
+    }
+
+    private static ReportSerializationConfig config(int parallelism, int chunkSize, int maxChunksInFlight) {
+        ReportSerializationConfig config = new ReportSerializationConfig();
+        config.setParallelism(parallelism);
+        config.setChunkSize(chunkSize);
+        config.setMaxChunksInFlight(maxChunksInFlight);
+        return config;
+    }
+}
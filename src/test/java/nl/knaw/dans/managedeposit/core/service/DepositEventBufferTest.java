@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import nl.knaw.dans.managedeposit.core.DepositEvent;
+import nl.knaw.dans.managedeposit.core.DepositEventBatch;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DepositEventBufferTest {
+
+    @Test
+    public void publish_should_number_events_from_one() {
+        DepositEventBuffer buffer = new DepositEventBuffer(4);
+
+        assertThat(buffer.publish(event("a")).getSequence()).isEqualTo(1);
+        assertThat(buffer.publish(event("b")).getSequence()).isEqualTo(2);
+        assertThat(buffer.getLastSequence()).isEqualTo(2);
+    }
+
+    @Test
+    public void since_should_return_the_events_after_the_cursor() {
+        DepositEventBuffer buffer = bufferWith(4, "a", "b", "c");
+
+        DepositEventBatch batch = buffer.since(1, 10);
+
+        assertThat(batch.getEvents()).extracting(DepositEvent::getDepositId).containsExactly("b", "c");
+        assertThat(batch.getLastSequence()).isEqualTo(3);
+        assertThat(batch.isTruncated()).isFalse();
+    }
+
+    @Test
+    public void since_should_return_at_most_limit_events() {
+        DepositEventBuffer buffer = bufferWith(4, "a", "b", "c");
+
+        DepositEventBatch batch = buffer.since(0, 2);
+
+        assertThat(batch.getEvents()).extracting(DepositEvent::getDepositId).containsExactly("a", "b");
+        assertThat(batch.getLastSequence()).isEqualTo(2);
+        assertThat(buffer.since(batch.getLastSequence(), 2).getEvents()).extracting(DepositEvent::getDepositId).containsExactly("c");
+    }
+
+    @Test
+    public void since_should_keep_the_cursor_when_there_are_no_new_events() {
+        DepositEventBuffer buffer = bufferWith(4, "a", "b");
+
+        DepositEventBatch batch = buffer.since(2, 10);
+
+        assertThat(batch.getEvents()).isEmpty();
+        assertThat(batch.getLastSequence()).isEqualTo(2);
+        assertThat(batch.isTruncated()).isFalse();
+    }
+
+    @Test
+    public void since_should_report_truncation_when_the_cursor_has_been_overwritten() {
+        DepositEventBuffer buffer = bufferWith(2, "a", "b", "c", "d");
+
+        DepositEventBatch batch = buffer.since(0, 10);
+
+        assertThat(batch.getEvents()).extracting(DepositEvent::getDepositId).containsExactly("c", "d");
+        assertThat(batch.isTruncated()).isTrue();
+        assertThat(buffer.since(2, 10).isTruncated()).isFalse();
+    }
+
+    @Test
+    public void since_should_report_truncation_for_a_cursor_from_before_a_restart() {
+        DepositEventBuffer buffer = bufferWith(4, "a");
+
+        DepositEventBatch batch = buffer.since(42, 10);
+
+        assertThat(batch.getEvents()).isEmpty();
+        assertThat(batch.getLastSequence()).isEqualTo(1);
+        assertThat(batch.isTruncated()).isTrue();
+    }
+
+    @Test
+    public void since_should_resume_from_an_event_id_of_the_same_epoch() {
+        DepositEventBuffer buffer = bufferWith(4, "a", "b", "c");
+
+        DepositEventBatch batch = buffer.since(buffer.getEpoch() + "-1", 10);
+
+        assertThat(batch.getEvents()).extracting(DepositEvent::getDepositId).containsExactly("b", "c");
+        assertThat(batch.getLastEventId()).isEqualTo(buffer.getEpoch() + "-3");
+        assertThat(batch.isTruncated()).isFalse();
+    }
+
+    @Test
+    public void since_should_return_the_buffer_as_truncated_for_an_event_id_of_another_epoch() {
+        DepositEventBuffer previous = bufferWith(4, "a", "b", "c");
+        DepositEventBuffer buffer = bufferWith(4, "x", "y");
+
+        DepositEventBatch batch = buffer.since(previous.getEpoch() + "-1", 10);
+
+        assertThat(batch.getEvents()).extracting(DepositEvent::getDepositId).containsExactly("x", "y");
+        assertThat(batch.isTruncated()).isTrue();
+    }
+
+    @Test
+    public void since_should_return_the_buffer_as_truncated_for_an_invalid_event_id() {
+        DepositEventBuffer buffer = bufferWith(4, "a");
+
+        assertThat(buffer.since("42", 10).isTruncated()).isTrue();
+        assertThat(buffer.since(buffer.getEpoch() + "-x", 10).isTruncated()).isTrue();
+    }
+
+    @Test
+    public void publish_should_give_events_an_id_with_the_epoch_of_the_buffer() {
+        DepositEventBuffer buffer = new DepositEventBuffer(4);
+
+        assertThat(buffer.publish(event("a")).getId()).isEqualTo(buffer.getEpoch() + "-1");
+        assertThat(new DepositEventBuffer(4).getEpoch()).isNotEqualTo(buffer.getEpoch());
+    }
+
+    @Test
+    public void publish_should_notify_listeners_until_they_are_removed() {
+        DepositEventBuffer buffer = new DepositEventBuffer(4);
+        AtomicInteger notified = new AtomicInteger();
+        Runnable listener = notified::incrementAndGet;
+
+        buffer.addListener(listener);
+        buffer.publish(event("a"));
+        buffer.removeListener(listener);
+        buffer.publish(event("b"));
+
+        assertThat(notified).hasValue(1);
+    }
+
+    @Test
+    public void publish_should_not_fail_when_a_listener_fails() {
+        DepositEventBuffer buffer = new DepositEventBuffer(4);
+        buffer.addListener(() -> {
+            throw new IllegalStateException("consumer is gone");
+        });
+
+        assertThat(buffer.publish(event("a")).getSequence()).isEqualTo(1);
+    }
+
+    private static DepositEventBuffer bufferWith(int capacity, String... depositIds) {
+        DepositEventBuffer buffer = new DepositEventBuffer(capacity);
+        for (String depositId : depositIds) {
+            buffer.publish(event(depositId));
+        }
+        return buffer;
+    }
+
+    private static DepositEvent event(String depositId) {
+        return new DepositEvent(DepositEvent.Type.CHANGED, depositId, "/var/opt/inbox", "SUBMITTED");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import org.junit.jupiter.api.Test;
+
+import java.time.OffsetDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DepositIndexTest {
+
+    @Test
+    public void hasSameProperties_should_be_true_for_the_properties_the_entry_was_made_of() {
+        DepositProperties dp = deposit("Aa");
+
+        assertThat(DepositIndex.entryOf(dp).hasSameProperties(deposit("Aa"))).isTrue();
+    }
+
+    @Test
+    public void hasSameProperties_should_not_be_fooled_by_values_with_the_same_hash_code() {
+        // "Aa" and "BB" have the same String.hashCode
+        DepositIndex.Entry entry = DepositIndex.entryOf(deposit("Aa"));
+
+        assertThat(entry.hasSameProperties(deposit("BB"))).isFalse();
+    }
+
+    @Test
+    public void hasSameProperties_should_ignore_the_storage_size() {
+        DepositIndex.Entry entry = DepositIndex.entryOf(deposit("Aa"));
+        DepositProperties dp = deposit("Aa");
+        dp.setStorageInBytes(42);
+
+        assertThat(entry.hasSameProperties(dp)).isTrue();
+    }
+
+    @Test
+    public void hasSameProperties_should_be_false_when_the_state_has_changed() {
+        DepositIndex.Entry entry = DepositIndex.entryOf(deposit("Aa"));
+        DepositProperties dp = deposit("Aa");
+        dp.setDepositState("ARCHIVED");
+
+        assertThat(entry.hasSameProperties(dp)).isFalse();
+    }
+
+    private static DepositProperties deposit(String description) {
+        return new DepositProperties("a5f6c0e2-0f3a-4c4a-9a8e-0c9d2f0f5e11", "user001", "bag", "SUBMITTED", description,
+            OffsetDateTime.parse("2023-09-01T12:00:00+02:00"), "/var/opt/inbox", -1);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import nl.knaw.dans.managedeposit.config.DepositEventQueueConfig;
+import nl.knaw.dans.managedeposit.config.LagConfig;
+import nl.knaw.dans.managedeposit.core.service.DepositEventQueue.FileEventType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DepositMoveCorrelatorTest {
+    private static final File inInbox = new File("/var/opt/inbox/deposit1/deposit.properties");
+    private static final File inOutbox = new File("/var/opt/outbox/deposit1/deposit.properties");
+
+    private final RecordingQueue queue = new RecordingQueue();
+    private DepositMoveCorrelator correlator;
+
+    // Records what is enqueued and held instead of journaling and processing it
+    private static class RecordingQueue extends DepositEventQueue {
+        private final List<String> enqueued = Collections.synchronizedList(new ArrayList<>());
+        private final List<File> held = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingQueue() {
+            super(null, null, null, new DepositLag(new MetricRegistry(), new LagConfig()), new DepositEventQueueConfig());
+        }
+
+        @Override
+        public void enqueue(FileEventType type, File file) {
+            enqueued.add(type + " " + file);
+        }
+
+        @Override
+        public void hold(File file) {
+            held.add(file);
+        }
+
+        @Override
+        public void release(File file) {
+            assertThat(held.remove(file)).as("held delete of %s", file).isTrue();
+        }
+
+        List<File> getHeld() {
+            synchronized (held) {
+                return List.copyOf(held);
+            }
+        }
+
+        List<String> getEnqueued() {
+            synchronized (enqueued) {
+                return List.copyOf(enqueued);
+            }
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (correlator != null)
+            correlator.stop();
+    }
+
+    @Test
+    public void onCreate_should_queue_a_move_for_a_delete_in_another_box_within_the_window() {
+        correlator = new DepositMoveCorrelator(queue, Duration.minutes(1));
+
+        correlator.onDelete(inInbox);
+        assertThat(queue.getHeld()).containsExactly(inInbox);
+        correlator.onCreate(inOutbox);
+
+        assertThat(queue.getEnqueued()).containsExactly("MOVE " + inOutbox);
+        assertThat(queue.getHeld()).isEmpty();
+    }
+
+    @Test
+    public void onCreate_should_queue_a_change_for_a_delete_in_the_same_box_within_the_window() {
+        correlator = new DepositMoveCorrelator(queue, Duration.minutes(1));
+
+        correlator.onDelete(inInbox);
+        correlator.onCreate(inInbox);
+
+        assertThat(queue.getEnqueued()).containsExactly("CHANGE " + inInbox);
+        assertThat(queue.getHeld()).isEmpty();
+    }
+
+    @Test
+    public void onCreate_should_queue_a_create_without_a_pending_delete() {
+        correlator = new DepositMoveCorrelator(queue, Duration.minutes(1));
+
+        correlator.onCreate(inOutbox);
+
+        assertThat(queue.getEnqueued()).containsExactly("CREATE " + inOutbox);
+    }
+
+    @Test
+    public void onDelete_should_queue_the_delete_when_the_window_expires() throws InterruptedException {
+        correlator = new DepositMoveCorrelator(queue, Duration.milliseconds(50));
+
+        correlator.onDelete(inInbox);
+        assertThat(queue.getEnqueued()).isEmpty();
+        waitForEvents(1);
+        correlator.onCreate(inOutbox);
+
+        assertThat(queue.getEnqueued()).containsExactly("DELETE " + inInbox, "CREATE " + inOutbox);
+        assertThat(queue.getHeld()).isEmpty();
+    }
+
+    @Test
+    public void onDelete_should_queue_the_earlier_delete_of_a_deposit_deleted_twice() {
+        correlator = new DepositMoveCorrelator(queue, Duration.minutes(1));
+
+        correlator.onDelete(inInbox);
+        correlator.onDelete(inOutbox);
+
+        assertThat(queue.getEnqueued()).containsExactly("DELETE " + inInbox);
+        assertThat(queue.getHeld()).containsExactly(inOutbox);
+    }
+
+    @Test
+    public void stop_should_queue_the_deletes_that_are_held_back() {
+        correlator = new DepositMoveCorrelator(queue, Duration.minutes(1));
+
+        correlator.onDelete(inInbox);
+        correlator.stop();
+        correlator = null;
+
+        assertThat(queue.getEnqueued()).containsExactly("DELETE " + inInbox);
+        assertThat(queue.getHeld()).isEmpty();
+    }
+
+    private void waitForEvents(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        // The delete is released right after it has been queued
+        while ((queue.getEnqueued().size() < count || !queue.getHeld().isEmpty()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.core.service;
+
+import com.codahale.metrics.MetricRegistry;
+import nl.knaw.dans.managedeposit.config.IoBudgetConfig;
+import nl.knaw.dans.managedeposit.core.service.IoBudget.Priority;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IoBudgetTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    @Test
+    public void acquire_should_not_count_calls_when_disabled() {
+        IoBudget ioBudget = new IoBudget(config(0, 100, 20), metricRegistry);
+
+        ioBudget.acquire(Priority.LOW, 1000);
+
+        assertThat(ioBudget.isEnabled()).isFalse();
+        assertThat(available()).isZero();
+        assertThat(metricRegistry.meter("nl.knaw.dans.managedeposit.core.service.IoBudget.low.calls").getCount()).isZero();
+    }
+
+    @Test
+    public void acquire_should_take_the_permits_from_the_bucket() {
+        IoBudget ioBudget = new IoBudget(config(1, 100, 20), metricRegistry);
+
+        ioBudget.acquire(Priority.HIGH, 30);
+        ioBudget.acquire(Priority.LOW, 20);
+
+        assertThat(available()).isEqualTo(50);
+        assertThat(metricRegistry.meter("nl.knaw.dans.managedeposit.core.service.IoBudget.high.calls").getCount()).isEqualTo(30);
+        assertThat(metricRegistry.meter("nl.knaw.dans.managedeposit.core.service.IoBudget.low.calls").getCount()).isEqualTo(20);
+        assertThat(throttled(Priority.HIGH) + throttled(Priority.LOW)).isZero();
+    }
+
+    @Test
+    public void acquire_should_take_at_most_the_burst_at_once() {
+        IoBudget ioBudget = new IoBudget(config(1, 100, 20), metricRegistry);
+
+        ioBudget.acquire(Priority.HIGH, 500);
+
+        assertThat(available()).isZero();
+        assertThat(throttled(Priority.HIGH)).isZero();
+    }
+
+    @Test
+    public void acquire_should_leave_the_reserve_to_high_priority_calls() {
+        IoBudget ioBudget = new IoBudget(config(100, 100, 20), metricRegistry);
+
+        ioBudget.acquire(Priority.LOW, 80);
+        ioBudget.acquire(Priority.HIGH, 10);
+        assertThat(throttled(Priority.HIGH)).isZero();
+
+        // Needs 10 tokens beyond the reserve of 20, while about 10 are left
+        long start = System.nanoTime();
+        ioBudget.acquire(Priority.LOW, 10);
+
+        assertThat(throttled(Priority.LOW)).isEqualTo(1);
+        assertThat((System.nanoTime() - start) / 1_000_000).isGreaterThanOrEqualTo(100);
+    }
+
+    @Test
+    public void acquire_should_proceed_when_interrupted() {
+        IoBudget ioBudget = new IoBudget(config(1, 10, 0), metricRegistry);
+        ioBudget.acquire(Priority.HIGH, 10);
+
+        Thread.currentThread().interrupt();
+        ioBudget.acquire(Priority.HIGH, 10);
+
+        assertThat(Thread.interrupted()).isTrue();
+    }
+
+    private long available() {
+        return (Long) metricRegistry.getGauges().get("nl.knaw.dans.managedeposit.core.service.IoBudget.available").getValue();
+    }
+
+    private long throttled(Priority priority) {
+        return metricRegistry.timer(MetricRegistry.name(IoBudget.class, priority.name().toLowerCase(), "throttled")).getCount();
+    }
+
+    private static IoBudgetConfig config(int statCallsPerSecond, int burst, int reserve) {
+        IoBudgetConfig config = new IoBudgetConfig();
+        config.setStatCallsPerSecond(statCallsPerSecond);
+        config.setBurst(burst);
+        config.setReserve(reserve);
+        return config;
+    }
+}
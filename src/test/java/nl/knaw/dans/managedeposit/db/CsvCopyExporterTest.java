@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2023 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.managedeposit.db;
+
+import nl.knaw.dans.managedeposit.config.ReportSerializationConfig;
+import nl.knaw.dans.managedeposit.core.CsvMessageBodyWriter;
+import nl.knaw.dans.managedeposit.core.DepositFilter;
+import nl.knaw.dans.managedeposit.core.DepositProperties;
+import nl.knaw.dans.managedeposit.core.DepositPropertiesArchive;
+import nl.knaw.dans.managedeposit.core.service.ChunkedSerializer;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.context.internal.ManagedSessionContext;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the CSV that PostgreSQL writes with COPY to the CSV that Jackson writes for the same records. Runs against the database given by
+ * <code>DD_MANAGE_DEPOSIT_TEST_POSTGRES_URL</code> (with <code>DD_MANAGE_DEPOSIT_TEST_POSTGRES_USER</code> and <code>DD_MANAGE_DEPOSIT_TEST_POSTGRES_PASSWORD</code>), in which
+ * it creates and drops its own tables.
+ */
+@EnabledIfEnvironmentVariable(named = "DD_MANAGE_DEPOSIT_TEST_POSTGRES_URL", matches = ".+")
+public class CsvCopyExporterTest {
+    private static final List<String> depositIds = List.of("plain", "quoted", "empty", "long", "missing");
+
+    private static SessionFactory sessionFactory;
+    private static DepositPropertiesDAO depositPropertiesDAO;
+    private static CsvCopyExporter csvCopyExporter;
+    private static ChunkedSerializer chunkedSerializer;
+
+    @BeforeAll
+    public static void setUp() {
+        sessionFactory = new Configuration()
+            .addAnnotatedClass(DepositProperties.class)
+            .addAnnotatedClass(DepositPropertiesArchive.class)
+            .setProperty("hibernate.connection.url", System.getenv("DD_MANAGE_DEPOSIT_TEST_POSTGRES_URL"))
+            .setProperty("hibernate.connection.username", Objects.toString(System.getenv("DD_MANAGE_DEPOSIT_TEST_POSTGRES_USER"), "postgres"))
+            .setProperty("hibernate.connection.password", Objects.toString(System.getenv("DD_MANAGE_DEPOSIT_TEST_POSTGRES_PASSWORD"), ""))
+            .setProperty("hibernate.dialect", "org.hibernate.dialect.PostgreSQL95Dialect")
+            .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+            .setProperty("hibernate.current_session_context_class", "managed")
+            .buildSessionFactory();
+        DepositDictionary depositDictionary = DepositDictionary.install(new DepositDictionary(sessionFactory));
+        new DepositDictionaryMigration(sessionFactory, depositDictionary, true).start();
+        depositPropertiesDAO = new DepositPropertiesDAO(sessionFactory, depositDictionary);
+        csvCopyExporter = new CsvCopyExporter(sessionFactory, depositDictionary);
+        chunkedSerializer = new ChunkedSerializer(new ReportSerializationConfig());
+
+        // Whole seconds, a fraction with trailing zeros, special characters and empty strings
+        DepositProperties plain = new DepositProperties("plain", "user001", "bag", "SUBMITTED", "Deposit is valid",
+            OffsetDateTime.parse("2023-05-01T10:15:30Z"), "/var/opt/inbox", 1234);
+        plain.setDepositUpdateTimestamp(OffsetDateTime.parse("2023-05-02T11:00:00.120+02:00"));
+        DepositProperties quoted = new DepositProperties("quoted", "user001", "bag, with \"quotes\"", "REJECTED", "line one\nline two; #3",
+            OffsetDateTime.parse("2023-01-01T00:00:00.123456Z"), "/var/opt/outbox", DepositProperties.storageSizePending);
+        quoted.setDepositUpdateTimestamp(OffsetDateTime.parse("2023-07-01T23:59:59.000001Z"));
+        DepositProperties empty = new DepositProperties("empty", "user002", "", "DRAFT", "",
+            OffsetDateTime.parse("2023-12-31T12:00:00.5Z"), "/var/opt/inbox", 0);
+        empty.setDeleted(true);
+        // Jackson quotes values longer than 24 characters, and values with a backslash
+        DepositProperties longValues = new DepositProperties("long", "user002", "a-bag-name-that-is-longer-than-24", "SUBMITTED", "C:\\deposits",
+            OffsetDateTime.parse("2023-12-31T12:00:00.123456Z"), "/var/opt/inbox/with/a/long/path", 0);
+
+        inSession(() -> {
+            depositPropertiesDAO.create(plain);
+            depositPropertiesDAO.create(quoted);
+            depositPropertiesDAO.create(empty);
+            depositPropertiesDAO.create(longValues);
+            return null;
+        });
+    }
+
+    @AfterAll
+    public static void tearDown() throws InterruptedException {
+        chunkedSerializer.stop();
+        sessionFactory.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "UTC", "Europe/Amsterdam" })
+    public void copy_should_write_the_same_csv_as_jackson_for_complete_records(String timeZone) throws IOException {
+        withTimeZone(timeZone, () -> {
+            for (String depositId : depositIds) {
+                DepositFilter filter = filterOn(depositId);
+                assertThat(copy(filter, List.of()))
+                    .as("deposit '%s' in %s", depositId, timeZone)
+                    .isEqualTo(jackson(inSession(() -> depositPropertiesDAO.findSelection(filter))));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "UTC", "Europe/Amsterdam" })
+    public void copy_should_write_the_same_csv_as_jackson_for_selected_fields(String timeZone) throws IOException {
+        List<String> fields = List.of("depositId", "depositUpdateTimestamp", "bagName", "deleted");
+        withTimeZone(timeZone, () -> {
+            for (String depositId : depositIds) {
+                DepositFilter filter = filterOn(depositId);
+                assertThat(copy(filter, fields))
+                    .as("deposit '%s' in %s", depositId, timeZone)
+                    .isEqualTo(jackson(inSession(() -> depositPropertiesDAO.findSelection(filter, fields))));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "UTC" })
+    public void copy_should_write_nothing_for_an_empty_report(String timeZone) throws IOException {
+        withTimeZone(timeZone, () -> assertThat(copy(filterOn("missing"), List.of())).isEmpty());
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private static void withTimeZone(String timeZone, IOAction action) throws IOException {
+        TimeZone original = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+        try {
+            action.run();
+        }
+        finally {
+            TimeZone.setDefault(original);
+        }
+    }
+
+    private static DepositFilter filterOn(String depositId) {
+        return DepositFilter.parse(Map.of("depositId", List.of(depositId)));
+    }
+
+    private static String copy(DepositFilter filter, List<String> fields) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        csvCopyExporter.export(filter, fields, false).write(outputStream);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static String jackson(List<?> data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new CsvMessageBodyWriter(chunkedSerializer).writeTo((List) data, List.class, List.class, null, MediaType.valueOf("text/csv"), null, outputStream);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    private static <T> T inSession(Supplier<T> work) {
+        try (Session session = sessionFactory.openSession()) {
+            ManagedSessionContext.bind(session);
+            session.beginTransaction();
+            try {
+                T result = work.get();
+                session.getTransaction().commit();
+                return result;
+            }
+            finally {
+                if (session.getTransaction().isActive())
+                    session.getTransaction().rollback();
+                ManagedSessionContext.unbind(sessionFactory);
+            }
+        }
+    }
+}